@@ -0,0 +1,71 @@
+
+/**
+ * AdmissionFilter.java
+ * 
+ * @author Cundao Yu <cundaoy@andrew.cmu.edu>
+ */
+
+/**
+ * Admission filter of the cache
+ * 
+ * It decides if a new version fetched for reading is worth caching. Files
+ * larger than maxSize are never cached, files larger than reuseSize are only
+ * cached when they have been fetched at least minFrequency times recently,
+ * counted by a {@link CountMinSketch}. Files not admitted are streamed from
+ * the server by a bypass version, so they don't evict the files in the cache.
+ */
+public class AdmissionFilter {
+    /**
+     * Max size of a file to cache
+     */
+    private long maxSize;
+    /**
+     * Min size of a file to check its reuse
+     */
+    private long reuseSize;
+    /**
+     * Min fetch count of a file larger than reuseSize to cache
+     */
+    private int minFrequency;
+    /**
+     * {@link CountMinSketch}
+     * Fetch count of paths
+     */
+    private CountMinSketch sketch;
+
+    /**
+     * Constructor
+     * 
+     * @param cacheSize    The size of the cache
+     * @param maxRatio     Max size of a file to cache, as a share of cache size
+     * @param reuseRatio   Min size of a file to check its reuse, as a share of
+     *                     cache size
+     * @param minFrequency Min fetch count of a file larger than reuseSize to cache
+     */
+    public AdmissionFilter(long cacheSize, double maxRatio, double reuseRatio, int minFrequency) {
+        this.maxSize = (long) (cacheSize * maxRatio);
+        this.reuseSize = (long) (cacheSize * reuseRatio);
+        this.minFrequency = minFrequency;
+        this.sketch = new CountMinSketch((int) Math.min(1 << 20, Math.max(1024, cacheSize / Server.CHUNK_SIZE)));
+    }
+
+    /**
+     * Count a fetch of a file and decide if its new version should be cached
+     * 
+     * This method is synchronized, since the sketch is shared by all opens.
+     * 
+     * @param relativePath {@link String} The relative path of the file
+     * @param size         Size of the new version
+     * @return {@link Boolean} True to cache it, False to stream it without caching
+     */
+    public synchronized Boolean admit(String relativePath, long size) {
+        sketch.increment(relativePath);
+        if (size > maxSize) {
+            return false;
+        }
+        if (size > reuseSize) {
+            return sketch.frequency(relativePath) >= minFrequency;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,241 @@
+
+/**
+ * ArcPolicy.java
+ * 
+ * @author Cundao Yu <cundaoy@andrew.cmu.edu>
+ */
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Adaptive replacement cache eviction policy
+ * 
+ * Files seen once are in T1, files seen again are in T2, both in LRU order.
+ * Ghost lists B1 and B2 remember the paths recently evicted from T1 and T2. A
+ * hit in B1 means T1 was too small, a hit in B2 means T2 was too small, the
+ * target size of T1 adapts to them, so a scan only goes through T1 and doesn't
+ * flush the files used again and again in T2.
+ * Sizes are in bytes instead of number of files, since files have different
+ * sizes.
+ */
+public class ArcPolicy implements EvictionPolicy {
+    /**
+     * Size of the cache
+     */
+    private long capacity;
+    /**
+     * Target size of T1
+     */
+    private long target;
+    /**
+     * {@link LinkedHashMap}<{@link CacheFile}, {@link Long}>
+     * Files seen once and their sizes, from the least recently used
+     */
+    private LinkedHashMap<CacheFile, Long> t1;
+    /**
+     * {@link LinkedHashMap}<{@link CacheFile}, {@link Long}>
+     * Files seen at least twice and their sizes, from the least recently used
+     */
+    private LinkedHashMap<CacheFile, Long> t2;
+    /**
+     * {@link LinkedHashMap}<{@link String}, {@link Long}>
+     * Paths evicted from T1 and their sizes, from the oldest
+     */
+    private LinkedHashMap<String, Long> b1;
+    /**
+     * {@link LinkedHashMap}<{@link String}, {@link Long}>
+     * Paths evicted from T2 and their sizes, from the oldest
+     */
+    private LinkedHashMap<String, Long> b2;
+    /**
+     * Total size of T1
+     */
+    private long t1Size;
+    /**
+     * Total size of T2
+     */
+    private long t2Size;
+    /**
+     * Total size of B1
+     */
+    private long b1Size;
+    /**
+     * Total size of B2
+     */
+    private long b2Size;
+
+    /**
+     * Constructor
+     * 
+     * @param capacity Size of the cache
+     */
+    public ArcPolicy(long capacity) {
+        this.capacity = capacity;
+        this.target = 0;
+        this.t1 = new LinkedHashMap<CacheFile, Long>();
+        this.t2 = new LinkedHashMap<CacheFile, Long>();
+        this.b1 = new LinkedHashMap<String, Long>();
+        this.b2 = new LinkedHashMap<String, Long>();
+        this.t1Size = 0;
+        this.t2Size = 0;
+        this.b1Size = 0;
+        this.b2Size = 0;
+    }
+
+    @Override
+    public void onInsert(CacheFile file) {
+        String path = file.getRelativePath();
+        long size = sizeOf(file);
+        if (b1.containsKey(path)) {
+            // Evicted from T1 too early, give T1 more space
+            long delta = b1Size > 0 ? Math.max(size, size * b2Size / b1Size) : size;
+            target = Math.min(capacity, target + delta);
+            b1Size -= b1.remove(path);
+            addToT2(file, size);
+        } else if (b2.containsKey(path)) {
+            // Evicted from T2 too early, give T2 more space
+            long delta = b2Size > 0 ? Math.max(size, size * b1Size / b2Size) : size;
+            target = Math.max(0, target - delta);
+            b2Size -= b2.remove(path);
+            addToT2(file, size);
+        } else {
+            t1.put(file, size);
+            t1Size += size;
+        }
+    }
+
+    @Override
+    public void onAccess(CacheFile file) {
+        if (!removeResident(file)) {
+            return;
+        }
+        addToT2(file, sizeOf(file)); // Seen again, or move to the most recently used of T2
+    }
+
+    @Override
+    public void onRemove(CacheFile file) {
+        removeResident(file);
+    }
+
+    @Override
+    public void onEvict(CacheFile file) {
+        String path = file.getRelativePath();
+        Long size = t1.remove(file);
+        if (size != null) {
+            t1Size -= size;
+            b1.put(path, size);
+            b1Size += size;
+        } else {
+            size = t2.remove(file);
+            if (size == null) {
+                return;
+            }
+            t2Size -= size;
+            b2.put(path, size);
+            b2Size += size;
+        }
+
+        /* Ghost lists only remember about one cache size of paths */
+        b1Size = trimGhost(b1, b1Size);
+        b2Size = trimGhost(b2, b2Size);
+    }
+
+    @Override
+    public CacheFile selectVictim(Predicate<CacheFile> evictable) {
+        Boolean fromT1 = t1Size > 0 && (t1Size > target || t2Size == 0);
+        CacheFile victim = findVictim(fromT1 ? t1 : t2, evictable);
+        if (victim == null) {
+            victim = findVictim(fromT1 ? t2 : t1, evictable);
+        }
+        return victim;
+    }
+
+    @Override
+    public String getStatus() {
+        String status = "ARC status: target " + target + " T1: ";
+        for (CacheFile file : t1.keySet()) {
+            status += file.getRelativePath() + " ";
+        }
+        status += "T2: ";
+        for (CacheFile file : t2.keySet()) {
+            status += file.getRelativePath() + " ";
+        }
+        return status;
+    }
+
+    /**
+     * Add a file to the most recently used of T2
+     * 
+     * @param file {@link CacheFile} The file to add
+     * @param size Size of the file
+     */
+    private void addToT2(CacheFile file, long size) {
+        t2.put(file, size);
+        t2Size += size;
+    }
+
+    /**
+     * Remove a file from T1 or T2
+     * 
+     * @param file {@link CacheFile} The file to remove
+     * @return {@link Boolean} True if the file was in T1 or T2
+     */
+    private Boolean removeResident(CacheFile file) {
+        Long size = t1.remove(file);
+        if (size != null) {
+            t1Size -= size;
+            return true;
+        }
+        size = t2.remove(file);
+        if (size != null) {
+            t2Size -= size;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Find the least recently used file that can be evicted in a list
+     * 
+     * @param list      {@link LinkedHashMap} T1 or T2
+     * @param evictable {@link Predicate}<{@link CacheFile}> True if a file can be
+     *                  evicted now
+     * @return {@link CacheFile} The file to evict, null if none
+     */
+    private CacheFile findVictim(LinkedHashMap<CacheFile, Long> list, Predicate<CacheFile> evictable) {
+        for (CacheFile file : list.keySet()) {
+            if (evictable.test(file)) {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Drop the oldest paths of a ghost list until it's within the cache size
+     * 
+     * @param ghost {@link LinkedHashMap} B1 or B2
+     * @param size  Total size of the ghost list
+     * @return The total size after trimming
+     */
+    private long trimGhost(LinkedHashMap<String, Long> ghost, long size) {
+        Iterator<Map.Entry<String, Long>> it = ghost.entrySet().iterator();
+        while (size > capacity && it.hasNext()) {
+            size -= it.next().getValue();
+            it.remove();
+        }
+        return size;
+    }
+
+    /**
+     * Get the size of a file counted by the policy
+     * 
+     * @param file {@link CacheFile} The file
+     * @return Size of the file, at least 1
+     */
+    private static long sizeOf(CacheFile file) {
+        return Math.max(1, file.getNewestSize());
+    }
+}
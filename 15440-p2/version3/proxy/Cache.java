@@ -4,51 +4,126 @@
  * 
  * @author Cundao Yu <cundaoy@andrew.cmu.edu>
  */
+import java.io.File;
 import java.rmi.RemoteException;
-import java.util.HashMap;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Cache class to manage the cache.
  * 
- * It has a HashMap {@link HashMap} to store the mapping from relativePath to
- * CacheFile.
- * It stores the head of LRU list(a doubly-linked list of CacheFile
- * {@link CacheFile} objects) as mostRecentUsed and the tail as
- * leastRecentUsed.
- * It has a tableLock {@link ReentrantLock} to protect the cache file HashMap.
+ * It has a ConcurrentHashMap {@link ConcurrentHashMap} to store the mapping
+ * from relativePath to CacheFile, lookups and opens of cached files take no
+ * lock.
+ * Which file to evict is decided by an {@link EvictionPolicy}, chosen by
+ * EVICTION_POLICY at startup.
+ * Accesses are not applied to the policy right away, they are recorded in an
+ * access buffer and drained in batches by whoever gets the table lock, so the
+ * recency is approximate.
+ * It has a tableLock {@link ReentrantLock} to protect changes of the cache file
+ * map and the policy.
  * It has a freeSizeLock {@link ReentrantLock} to protect the freeSize(availble
  * space in cache).
+ * The table lock is always taken before the freeSize lock, and no one waits for
+ * space with the table lock held.
+ * New versions fetched for reading pass an {@link AdmissionFilter}, those not
+ * admitted are streamed by a bypass version, never inserted to the map.
+ * Space requests that can't be satisfied wait in a FIFO queue of
+ * {@link SpaceRequest}. Released space or a file becoming evictable wakes the
+ * request at the head, a request waits at most RESERVE_TIMEOUT.
+ * Changes of the map are journaled in a {@link CacheIndex}, fully cached
+ * versions are restored from it at startup, and revalidated lazily by
+ * checkFile with their stored version ID.
+ * A version leased by the server is opened without checkFile until the lease
+ * expires, or until the server invalidates it through the
+ * {@link CacheInvalidator} registered at startup.
+ * A check of a file also revalidates cached files of the same directory in one
+ * checkFiles call, small new versions are inlined in the results and
+ * prefetched into the cache, removed files are dropped.
  */
 public class Cache {
+    /**
+     * Number of buffered accesses that triggers a drain
+     */
+    private static final int DRAIN_THRESHOLD = 64;
+
     /**
      * {@link String}
      * The directory of the cache
      */
     private String cacheDir;
     /**
-     * The available space in cache
+     * The size of the cache
+     */
+    private long cacheSize;
+    /**
+     * The available space in cache, read without freeSize lock while evicting
+     */
+    private volatile long freeSize;
+    /**
+     * {@link ArrayDeque}<{@link SpaceRequest}>
+     * Space requests waiting in FIFO order, protected by freeSizeLock
      */
-    private long freeSize;
+    private ArrayDeque<SpaceRequest> spaceRequests;
     /**
-     * {@link HashMap}<{@link String}, {@link CacheFile}>
+     * {@link ConcurrentHashMap}<{@link String}, {@link CacheFile}>
      * The mapping from relativePath to CacheFile
      */
-    private HashMap<String, CacheFile> cacheFileTable;
+    private ConcurrentHashMap<String, CacheFile> cacheFileTable;
+    /**
+     * {@link ConcurrentHashMap}<{@link String}, {@link Set}<{@link CacheFile}>>
+     * Cached files of each directory, changed with cacheFileTable
+     */
+    private ConcurrentHashMap<String, Set<CacheFile>> dirTable;
+    /**
+     * {@link EvictionPolicy}
+     * The policy to select files to evict
+     */
+    private EvictionPolicy policy;
+    /**
+     * {@link AdmissionFilter}
+     * The filter to decide if a new version should be cached
+     */
+    private AdmissionFilter admissionFilter;
+    /**
+     * {@link CacheIndex}
+     * The persistent index of the cache, changed under the table lock
+     */
+    private CacheIndex index;
+    /**
+     * {@link ConcurrentLinkedQueue}<{@link CacheFile}>
+     * Accessed files not applied to the policy yet
+     */
+    private ConcurrentLinkedQueue<CacheFile> accessBuffer;
+    /**
+     * {@link AtomicInteger}
+     * Number of accesses in the access buffer
+     */
+    private AtomicInteger bufferedAccesses;
     /**
-     * {@link CacheFile}
-     * The head of LRU list, the most recently used file
+     * ID of this proxy registered to the server, -1 if not registered
      */
-    private CacheFile mostRecentUsed;
+    private int proxyId;
     /**
-     * {@link CacheFile}
-     * The tail of LRU list, the least recently used file
+     * {@link AtomicLong}
+     * Number of invalidations received, a lease is not taken if an invalidation
+     * comes while checking
      */
-    private CacheFile leastRecentUsed;
+    private AtomicLong invalidations;
     /**
      * {@link ReentrantLock}
-     * The lock to protect the cache file HashMap
+     * The lock to protect changes of the cache file map and the policy
      */
     private ReentrantLock tableLock;
     /**
@@ -65,10 +140,19 @@ public class Cache {
      */
     public Cache(String cacheDir, long cacheSize) {
         this.cacheDir = cacheDir;
+        this.cacheSize = cacheSize;
         this.freeSize = cacheSize;
-        this.cacheFileTable = new HashMap<String, CacheFile>();
-        this.mostRecentUsed = null;
-        this.leastRecentUsed = null;
+        this.spaceRequests = new ArrayDeque<SpaceRequest>();
+        this.cacheFileTable = new ConcurrentHashMap<String, CacheFile>();
+        this.dirTable = new ConcurrentHashMap<String, Set<CacheFile>>();
+        this.policy = createPolicy(Proxy.EVICTION_POLICY, cacheSize);
+        this.admissionFilter = new AdmissionFilter(cacheSize, Proxy.ADMIT_MAX_RATIO, Proxy.ADMIT_REUSE_RATIO,
+                Proxy.ADMIT_MIN_FREQUENCY);
+        this.index = new CacheIndex(cacheDir);
+        this.proxyId = -1;
+        this.invalidations = new AtomicLong(0);
+        this.accessBuffer = new ConcurrentLinkedQueue<CacheFile>();
+        this.bufferedAccesses = new AtomicInteger(0);
         this.tableLock = new ReentrantLock();
         this.freeSizeLock = new ReentrantLock();
     }
@@ -86,19 +170,59 @@ public class Cache {
      */
     public FileOpenResult checkAndOpen(String relativePath, Boolean read, Boolean write, Boolean create,
             Boolean exclusive) {
+        while (true) {
+            FileOpenResult result = checkAndOpenOnce(relativePath, read, write, create, exclusive);
+            if (result != null) {
+                return result;
+            }
+            // Evicted or removed while opening, check the server again
+            Logger.log("File: " + relativePath + " left the cache while opening, check it again");
+        }
+    }
+
+    /**
+     * Check file on server and open it once.
+     * 
+     * @param relativePath {@link String} The relative path of the file
+     * @param read         {@link Boolean} True if to read
+     * @param write        {@link Boolean} True if to write
+     * @param create       {@link Boolean} True if to create
+     * @param exclusive    {@link Boolean} True if to create exclusively(return
+     *                     EEXIST if file exists)
+     * @return {@link FileOpenResult} The result of opening the file, null if the
+     *         file left the cache while opening it
+     */
+    private FileOpenResult checkAndOpenOnce(String relativePath, Boolean read, Boolean write, Boolean create,
+            Boolean exclusive) {
         /* First, check in the file map to get current version */
-        tableLock.lock(); // Lock table lock
         CacheFile file = cacheFileTable.get(relativePath);
         UUID verId = null;
         if (file != null) {
             verId = file.getNewestVerId();
         }
-        tableLock.unlock(); // Unlock table lock
+
+        if (file != null && Proxy.getUploader().isPending(relativePath)) {
+            // Newest version is written here and not uploaded yet, server only has older
+            // versions
+            return open(relativePath, read, write, create, exclusive);
+        }
+
+        if (file != null && file.hasLease()) {
+            // The server won't change this version before the lease expires
+            return open(relativePath, read, write, create, exclusive);
+        }
 
         FileCheckResult result = null;
+        long checkTime = System.nanoTime(); // The lease starts no earlier than the request
+        long seenInvalidations = invalidations.get();
         /* Check file on the server */
         try {
-            result = Proxy.getServer().checkFile(relativePath, verId);
+            if (Proxy.CHECK_BATCH_SIZE > 1) {
+                result = checkWithSiblings(relativePath, verId, checkTime, seenInvalidations);
+            }
+            if (result == null) {
+                result = Proxy.getServer().checkFile(relativePath, verId, proxyId);
+            }
         } catch (RemoteException e) {
             e.printStackTrace();
         }
@@ -111,19 +235,18 @@ public class Cache {
         switch (result.getResCode()) {
             case ResCode.NO_UPDATE:
                 // File is already newest version, open it
+                extendLease(result, checkTime, seenInvalidations);
                 return open(relativePath, read, write, create, exclusive);
             case ResCode.NEW_VERSION:
                 // New version of file, update the cache and open it
                 if (exclusive) {
+                    closeServerFile(result.getServerFd());
                     return new FileOpenResult(ResCode.EEXIST, null);
                 }
-                FileOpenResult openResult = updateAndOpen(result, read, write); // Update cache and open the file
-                try {
-                    Proxy.getServer().closeFile(result.getServerFd()); // Close the openfile on server
-                } catch (RemoteException e) {
-
-                    e.printStackTrace();
-                }
+                // Update cache and open the file, the new file version takes over the openfile
+                // on server
+                FileOpenResult openResult = updateAndOpen(result, read, write);
+                extendLease(result, checkTime, seenInvalidations);
                 return openResult;
             case ResCode.IS_DIR:
                 // File is a directory, Only read mode is allowed
@@ -143,6 +266,10 @@ public class Cache {
     /**
      * Open a file in cache.
      * 
+     * This takes no lock, the file version opened is pinned by its refCount. A
+     * file evicted or removed before its newest version is pinned can't be opened
+     * any more, the caller checks the server again.
+     * 
      * @param relativePath {@link String} The relative path of the file
      * @param read         {@link Boolean} True if to read
      * @param write        {@link Boolean} True if to write
@@ -150,31 +277,30 @@ public class Cache {
      * @param exclusive    {@link Boolean} True if to create exclusively(return
      *                     EEXIST if file
      *                     exists)
-     * @return {@link FileOpenResult} The result of opening the file
+     * @return {@link FileOpenResult} The result of opening the file, null if the
+     *         file left the cache while opening it
      */
     private FileOpenResult open(String relativePath, Boolean read, Boolean write, Boolean create, Boolean exclusive) {
-        tableLock.lock(); // Lock table lock
         CacheFile file = cacheFileTable.get(relativePath);
         FileOpenResult result = null;
         if (file == null) {
             // File not in cache
             if (!create) {
-                tableLock.unlock();
                 return new FileOpenResult(ResCode.ENOENT, null);
             }
             CacheFileVersion fileVersion = new CacheFileVersion(null, relativePath, UUID.randomUUID(), true, true, 0,
-                    null); // Create a temporary file version for writing, after writing, it will be added
+                    null, 0); // Create a temporary file version for writing, after writing, it will be added
                            // to cache map
             result = fileVersion.open(true, true);
-            tableLock.unlock(); // Unlock table lock
         } else {
             // File is in cache
             if (exclusive) {
-                tableLock.unlock(); // Unlock table lock
                 return new FileOpenResult(ResCode.EEXIST, null);
             }
             result = file.open(read, write);
-            tableLock.unlock(); // Unlock table lock
+            if (result.getResCode() == ResCode.ENOENT && cacheFileTable.get(relativePath) != file) {
+                return null;
+            }
         }
         return result;
     }
@@ -182,36 +308,306 @@ public class Cache {
     /**
      * Update cache and open the file.
      * 
+     * The new version is fetched before taking the table lock, so waiting for
+     * cache space or server data doesn't block other files.
+     * 
      * @param result {@link FileCheckResult} The result of checking the file on
      *               server
      * @param read   {@link Boolean} True if to read
      * @param write  {@link Boolean} True if to write
-     * @return {@link FileOpenResult} The result of opening the file
+     * @return {@link FileOpenResult} The result of opening the file, null if the
+     *         file left the cache while opening it
      */
     private FileOpenResult updateAndOpen(FileCheckResult result, Boolean read, Boolean write) {
-        tableLock.lock(); // Lock table lock
         CacheFile file = cacheFileTable.get(result.getRelativePath());
-        FileOpenResult openResult = null;
-        if (file == null) {
-            // File not in cache, create a new CacheFile and open it
-            file = new CacheFile(result.getRelativePath(), result.getVerId(), result.getCanRead(), result.getCanWrite(),
-                    result.getServerFd(), result.getSize(), result.getFirstChunk());
-            cacheFileTable.put(result.getRelativePath(), file);
-            insertToLRU(file);
-            openResult = file.open(read, write);
-        } else if (!file.getNewestVerId().equals(result.getVerId())) {
-            // New version of file, update the CacheFile and open it
-            file.update(result.getVerId(), result.getCanRead(), result.getCanWrite(), result.getServerFd(),
-                    result.getSize(), result.getFirstChunk());
-            openResult = file.open(read, write);
-        } else {
+        if (file != null && result.getVerId().equals(file.getNewestVerId())) {
             // File is already newest version, open it
-            openResult = file.open(read, write);
+            closeServerFile(result.getServerFd());
+            FileOpenResult openResult = file.open(read, write);
+            if (openResult.getResCode() == ResCode.ENOENT && cacheFileTable.get(result.getRelativePath()) != file) {
+                return null;
+            }
+            return openResult;
         }
+
+        if (!write && Proxy.ADMISSION && !admissionFilter.admit(result.getRelativePath(), result.getSize())) {
+            // Not worth caching, stream it by a bypass version that takes over the openfile
+            // on server
+            Logger.log("Bypass cache for file: " + result.getRelativePath());
+            if (file != null) {
+                removeFile(result.getRelativePath()); // The cached version is stale
+            }
+            CacheFileVersion bypassVersion = new CacheFileVersion(result.getRelativePath(), result.getVerId(),
+                    result.getCanRead(), result.getCanWrite(), result.getServerFd(), result.getSize(),
+                    result.getFirstChunk());
+            return bypassVersion.open(read, write);
+        }
+
+        // Fetch the new version, the new file version takes over the openfile on server
+        CacheFileVersion fileVersion = new CacheFileVersion(null, result.getRelativePath(), result.getVerId(),
+                result.getCanRead(), result.getCanWrite(), 0, result.getServerFd(), result.getSize(),
+                result.getFirstChunk());
+        if (fileVersion.isDeleted()) {
+            // No space for the new version, or it couldn't be fetched completely
+            return new FileOpenResult(fileVersion.isFetchFailed() ? ResCode.EIO : ResCode.ENOSPC, null);
+        }
+
+        tableLock.lock(); // Lock table lock
+        file = insertVersion(fileVersion);
+        Boolean pinned = fileVersion.use(); // Not evicted before it's opened
         tableLock.unlock(); // Unlock table lock
+
+        // Open without the table lock, a write copy may wait for cache space
+        FileOpenResult openResult = file.open(read, write);
+        if (pinned) {
+            fileVersion.release();
+        }
+        if (openResult.getResCode() == ResCode.ENOENT && cacheFileTable.get(result.getRelativePath()) != file) {
+            return null;
+        }
         return openResult;
     }
 
+    /**
+     * Insert a version fetched from the server as the newest version of its file
+     * 
+     * This can only be called when table lock is held.
+     * 
+     * @param fileVersion {@link CacheFileVersion} The version fetched
+     * @return {@link CacheFile} The file in cache
+     */
+    private CacheFile insertVersion(CacheFileVersion fileVersion) {
+        drainAccessBuffer();
+        CacheFile file = cacheFileTable.get(fileVersion.getRelativePath());
+        if (file == null) {
+            // File not in cache, create a new CacheFile with the new version
+            file = new CacheFile(fileVersion.getRelativePath(), fileVersion);
+            fileVersion.use(); // Used by the cache
+            putToTable(file);
+            policy.onInsert(file);
+            recordNewest(file);
+        } else if (!fileVersion.getVerId().equals(file.getNewestVerId())) {
+            // New version of file, update the CacheFile
+            file.update(fileVersion);
+            policy.onAccess(file);
+            recordNewest(file);
+        } else {
+            // Someone else cached the same version meanwhile, drop the fetched one
+            fileVersion.use();
+            fileVersion.release();
+        }
+        return file;
+    }
+
+    /**
+     * Check a file together with cached files of the same directory whose leases
+     * expired
+     * 
+     * Results of the other files are applied to the cache: leases are extended,
+     * inlined new versions are prefetched and removed files are dropped.
+     * 
+     * @param relativePath      {@link String} The relative path of the file
+     * @param verId             {@link UUID} Version ID of the file in cache, null
+     *                          if not cached
+     * @param checkTime         Time when the check was sent, in System.nanoTime()
+     * @param seenInvalidations Number of invalidations before the check was sent
+     * @return {@link FileCheckResult} The result of the file as from checkFile,
+     *         null if no other file is due for revalidation
+     * @throws RemoteException
+     */
+    private FileCheckResult checkWithSiblings(String relativePath, UUID verId, long checkTime,
+            long seenInvalidations) throws RemoteException {
+        Set<CacheFile> siblings = dirTable.get(getDir(relativePath));
+        if (siblings == null) {
+            return null; // Nothing cached in the directory
+        }
+        List<String> paths = new ArrayList<String>();
+        List<UUID> verIds = new ArrayList<UUID>();
+        paths.add(relativePath);
+        verIds.add(verId);
+        for (CacheFile sibling : siblings) {
+            if (paths.size() >= Proxy.CHECK_BATCH_SIZE) {
+                break;
+            }
+            String siblingPath = sibling.getRelativePath();
+            UUID siblingVerId = sibling.getNewestVerId();
+            if (siblingVerId == null || siblingPath.equals(relativePath) || sibling.hasLease()
+                    || Proxy.getUploader().isPending(siblingPath)) {
+                continue; // Still leased or newer than the server
+            }
+            paths.add(siblingPath);
+            verIds.add(siblingVerId);
+        }
+        if (paths.size() == 1) {
+            return null; // Nothing to revalidate with it
+        }
+
+        FileCheckResult[] results = Proxy.getServer().checkFiles(paths.toArray(new String[0]),
+                verIds.toArray(new UUID[0]), proxyId);
+        for (int i = 1; i < results.length; i++) {
+            applySiblingResult(results[i], checkTime, seenInvalidations);
+        }
+        Logger.log("Revalidated " + (results.length - 1) + " files with " + relativePath);
+        return results[0]; // Checked like checkFile, a large new version is open
+    }
+
+    /**
+     * Put a file to the table and to the files of its directory
+     * 
+     * This can only be called when table lock is held.
+     * 
+     * @param file {@link CacheFile} The file to put
+     */
+    private void putToTable(CacheFile file) {
+        CacheFile old = cacheFileTable.put(file.getRelativePath(), file);
+        if (old != null) {
+            removeFromTable(old);
+            cacheFileTable.put(file.getRelativePath(), file);
+        }
+        dirTable.computeIfAbsent(getDir(file.getRelativePath()), dir -> ConcurrentHashMap.newKeySet()).add(file);
+    }
+
+    /**
+     * Remove a file from the table and from the files of its directory
+     * 
+     * This can only be called when table lock is held.
+     * 
+     * @param file {@link CacheFile} The file to remove
+     */
+    private void removeFromTable(CacheFile file) {
+        cacheFileTable.remove(file.getRelativePath());
+        String dir = getDir(file.getRelativePath());
+        Set<CacheFile> files = dirTable.get(dir);
+        if (files != null) {
+            files.remove(file);
+            if (files.isEmpty()) {
+                dirTable.remove(dir);
+            }
+        }
+    }
+
+    /**
+     * Get the directory of a path
+     * 
+     * @param relativePath {@link String} The relative path of the file
+     * @return {@link String} The directory with a trailing slash, empty for the
+     *         root
+     */
+    private static String getDir(String relativePath) {
+        return relativePath.substring(0, relativePath.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * Apply the result of a file revalidated with another file
+     * 
+     * @param result            {@link FileCheckResult} The result of the file
+     * @param checkTime         Time when the check was sent, in System.nanoTime()
+     * @param seenInvalidations Number of invalidations before the check was sent
+     */
+    private void applySiblingResult(FileCheckResult result, long checkTime, long seenInvalidations) {
+        switch (result.getResCode()) {
+            case ResCode.NO_UPDATE:
+                extendLease(result, checkTime, seenInvalidations);
+                break;
+            case ResCode.NEW_VERSION:
+                if (!result.isInlined()) {
+                    break; // Fetched when it's opened
+                }
+                // Prefetch the new version from the inlined content
+                CacheFileVersion fileVersion = new CacheFileVersion(null, result.getRelativePath(), result.getVerId(),
+                        result.getCanRead(), result.getCanWrite(), 0, -1, result.getSize(), result.getFirstChunk());
+                if (fileVersion.isDeleted()) {
+                    break; // No space or fetch failed, keep the stale version until it's opened
+                }
+                tableLock.lock(); // Lock table lock
+                insertVersion(fileVersion);
+                tableLock.unlock(); // Unlock table lock
+                extendLease(result, checkTime, seenInvalidations);
+                break;
+            case ResCode.NOT_EXIST:
+                removeFile(result.getRelativePath());
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Extend the lease of the cached version granted by a check result
+     * 
+     * @param result    {@link FileCheckResult} The result of checking the file on
+     *                  server
+     * @param checkTime         Time when the check was sent, in System.nanoTime()
+     * @param seenInvalidations Number of invalidations before the check was sent
+     */
+    private void extendLease(FileCheckResult result, long checkTime, long seenInvalidations) {
+        if (result.getLeaseMillis() <= 0) {
+            return;
+        }
+        CacheFile file = cacheFileTable.get(result.getRelativePath());
+        if (file == null) {
+            return;
+        }
+        synchronized (file) {
+            if (invalidations.get() != seenInvalidations) {
+                return; // The invalidation may be of this version and overtook the result
+            }
+            file.extendLease(result.getVerId(), checkTime + TimeUnit.MILLISECONDS.toNanos(result.getLeaseMillis()));
+        }
+    }
+
+    /**
+     * Invalidate the lease of a file, called by the server before the file
+     * changes
+     * 
+     * @param relativePath {@link String} The relative path of the file
+     */
+    public void invalidate(String relativePath) {
+        invalidations.incrementAndGet(); // Before revoking, so a check in flight won't take the lease
+        CacheFile file = cacheFileTable.get(relativePath);
+        if (file != null) {
+            synchronized (file) {
+                file.revokeLease();
+            }
+        }
+        Logger.log("Invalidate file: " + relativePath);
+    }
+
+    /**
+     * Register this proxy to the server to get invalidations
+     * 
+     * With RMI the callback is exported for the server to call, with NIO it's
+     * called on INVALIDATE frames of the connection.
+     */
+    public void register() {
+        CacheInvalidator invalidator = new CacheInvalidator(this);
+        try {
+            if (!Proxy.TRANSPORT.equals("nio")) {
+                UnicastRemoteObject.exportObject(invalidator, 0);
+            }
+            proxyId = Proxy.getServer().registerProxy(invalidator);
+            Logger.log("Registered to server as proxy " + proxyId);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Close an openfile on server that is not taken over by any file version.
+     * 
+     * @param serverFd File descriptor of the file in the server
+     */
+    private void closeServerFile(int serverFd) {
+        if (serverFd < 0) {
+            return; // Inlined, nothing opened on server
+        }
+        try {
+            Proxy.getServer().closeFile(serverFd);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
     /**
      * Update file in cache with new version.
      * 
@@ -219,15 +615,22 @@ public class Cache {
      */
     public void updateFile(CacheFileVersion fileVersion) {
         tableLock.lock(); // Lock table lock
+        drainAccessBuffer();
         CacheFile file = cacheFileTable.get(fileVersion.getRelativePath());
         if (file != null) {
             // File in cache, update it
             file.update(fileVersion);
+            policy.onAccess(file);
         } else {
             // File not in cache, create a new CacheFile and update it
             file = new CacheFile(fileVersion.getRelativePath(), fileVersion);
-            cacheFileTable.put(fileVersion.getRelativePath(), file);
-            insertToLRU(file);
+            fileVersion.use(); // Used by the cache
+            putToTable(file);
+            policy.onInsert(file);
+        }
+        recordNewest(file);
+        if (Logger.isEnabled()) {
+            Logger.log(policy.getStatus()); // Walks every cached file
         }
         tableLock.unlock(); // Unlock table lock
     }
@@ -241,8 +644,27 @@ public class Cache {
         tableLock.lock(); // Lock table lock
         CacheFile file = cacheFileTable.get(relativePath);
         if (file != null) {
-            cacheFileTable.remove(relativePath);
-            removeFromLRU(file);
+            removeFromTable(file);
+            policy.onRemove(file);
+            index.remove(relativePath);
+            file.remove();
+        }
+        tableLock.unlock(); // Unlock table lock
+    }
+
+    /**
+     * Remove a file from cache if a version is still the newest of it
+     * 
+     * @param fileVersion {@link CacheFileVersion} The version to remove
+     */
+    public void removeVersion(CacheFileVersion fileVersion) {
+        String relativePath = fileVersion.getRelativePath();
+        tableLock.lock(); // Lock table lock
+        CacheFile file = cacheFileTable.get(relativePath);
+        if (file != null && fileVersion.getVerId().equals(file.getNewestVerId())) {
+            removeFromTable(file);
+            policy.onRemove(file);
+            index.remove(relativePath);
             file.remove();
         }
         tableLock.unlock(); // Unlock table lock
@@ -251,14 +673,57 @@ public class Cache {
     /**
      * Request size from cache.
      * 
+     * The request waits in FIFO order until it reaches the head of the queue and
+     * enough space is free or can be evicted, or until RESERVE_TIMEOUT.
+     * 
      * @param size The size to request
+     * @return True if the size is reserved, False if there's no space in time
      */
-    public void requestSize(long size) {
+    public Boolean requestSize(long size) {
+        if (size <= 0) {
+            return true;
+        }
+        if (size > cacheSize) {
+            Logger.log("Required size " + size + " is larger than cache size");
+            return false;
+        }
+
         freeSizeLock.lock(); // Lock freeSize lock
-        evictToSize(size); // Evict cache to size required
-        freeSize -= size; // Decrease free size
-        Logger.log("Request size: " + size + " free size: " + freeSize);
+        SpaceRequest request = new SpaceRequest(size, freeSizeLock.newCondition());
+        spaceRequests.add(request);
+        long remaining = TimeUnit.MILLISECONDS.toNanos(Proxy.RESERVE_TIMEOUT);
+        Boolean reserved = false;
+        try {
+            while (true) {
+                if (spaceRequests.peek() == request) {
+                    if (freeSize < size) {
+                        // Evict without freeSize lock, the table lock is taken first
+                        freeSizeLock.unlock();
+                        evictToSize(size);
+                        freeSizeLock.lock();
+                    }
+                    if (freeSize >= size) {
+                        freeSize -= size; // Decrease free size
+                        reserved = true;
+                        break;
+                    }
+                }
+                if (remaining <= 0) {
+                    Logger.log("Request size: " + size + " timed out, free size: " + freeSize);
+                    break;
+                }
+                remaining = request.getReady().awaitNanos(remaining);
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        spaceRequests.remove(request);
+        if (reserved) {
+            Logger.log("Request size: " + size + " free size: " + freeSize);
+        }
+        wakeHead(false); // Let the next request try
         freeSizeLock.unlock(); // Unlock freeSize lock
+        return reserved;
     }
 
     /**
@@ -270,14 +735,42 @@ public class Cache {
         freeSizeLock.lock(); // Lock freeSize lock
         freeSize += size; // Increase free size
         Logger.log("Release size: " + size + " free size: " + freeSize);
+        wakeHead(true);
         freeSizeLock.unlock(); // Unlock freeSize lock
     }
 
     /**
-     * Evict cache to size required.
+     * Notify that a file may be evicted now, since its newest version is no
+     * longer in use
+     */
+    public void notifyEvictable() {
+        freeSizeLock.lock(); // Lock freeSize lock
+        wakeHead(false);
+        freeSizeLock.unlock(); // Unlock freeSize lock
+    }
+
+    /**
+     * Wake the request at the head of the queue
      * 
      * This can only be called when freeSize lock is held.
+     * 
+     * @param onlyIfFree {@link Boolean} True to wake it only if the free size
+     *                   satisfies it without eviction
+     */
+    private void wakeHead(Boolean onlyIfFree) {
+        SpaceRequest head = spaceRequests.peek();
+        if (head != null && (!onlyIfFree || freeSize >= head.getSize())) {
+            head.getReady().signal();
+        }
+    }
+
+    /**
+     * Evict cache to size required.
+     * 
+     * This can only be called when freeSize lock is not held.
      * This will lock table write lock.
+     * It evicts files not in use in the order of the policy, and returns when the
+     * free size is enough or no more file can be evicted.
      * 
      * @param sizeRequired
      */
@@ -288,111 +781,170 @@ public class Cache {
         }
         Logger.log("Current free size: " + freeSize + " required size: " + sizeRequired);
         tableLock.lock(); // Lock table lock
+        drainAccessBuffer(); // Evict by the latest recency
 
-        /* Traverse the LRU list to evict */
-        CacheFile file = leastRecentUsed;
+        /* Evict victims of the policy, files in use are skipped */
         while (freeSize < sizeRequired) {
+            CacheFile file = policy.selectVictim(victim -> !victim.isNewestInUse());
             if (file == null) {
-                if (leastRecentUsed == null) {
-                    Logger.log("Exception: Required size is larger than cache size");
-                    tableLock.unlock(); // Unlock table lock
-                    return;
-                }
-                Logger.log("No file could be evicted now, sleep and try again");
-                // sleep and try again
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-                file = leastRecentUsed;
+                Logger.log("No file could be evicted now");
+                break;
             }
-            Logger.log("Try to evict file: " + file.getRelativePath());
-            if (file.isNewestInUse()) {
-                // This file is in use, skip
-                file = file.getPrev();
-                Logger.log("File is in use, skip");
-                continue;
-            }
-            // Evict this file
-            cacheFileTable.remove(file.getRelativePath());
-            CacheFile prev = file.getPrev();
-            removeFromLRU(file);
+            Logger.log("Evict file: " + file.getRelativePath());
+            removeFromTable(file);
+            policy.onEvict(file);
+            index.remove(file.getRelativePath());
             file.remove();
-            file = prev;
-            Logger.log("Evicted file: " + file.getRelativePath());
         }
-        Logger.log(getLRUStatus());
+        if (Logger.isEnabled()) {
+            Logger.log(policy.getStatus()); // Walks every cached file
+        }
         tableLock.unlock();
     }
 
     /**
-     * insert a new file to LRU
-     * 
-     * This can only be called when table lock is held.
+     * Create the eviction policy by name
      * 
-     * @param file {@link CacheFile} The file to insert
+     * @param name      {@link String} Name of the policy: lru, lfu, arc, tinylfu
+     *                  or gdsf
+     * @param cacheSize The size of the cache
+     * @return {@link EvictionPolicy} The eviction policy
      */
-    private void insertToLRU(CacheFile file) {
-        if (mostRecentUsed == null) {
-            mostRecentUsed = file;
-            leastRecentUsed = file;
-        } else {
-            file.setNext(mostRecentUsed);
-            mostRecentUsed.setPrev(file);
-            mostRecentUsed = file;
+    private static EvictionPolicy createPolicy(String name, long cacheSize) {
+        switch (name.toLowerCase()) {
+            case "lru":
+                return new LruPolicy();
+            case "lfu":
+                return new LfuPolicy();
+            case "arc":
+                return new ArcPolicy(cacheSize);
+            case "tinylfu":
+                return new TinyLfuPolicy(cacheSize,
+                        new CountMinSketch((int) Math.min(1 << 20, Math.max(1024, cacheSize / Server.CHUNK_SIZE))));
+            case "gdsf":
+                return new GdsfPolicy();
+            default:
+                Logger.log("Unknown eviction policy " + name + ", use lru");
+                return new LruPolicy();
         }
-        Logger.log(getLRUStatus());
     }
 
     /**
-     * remove a file from LRU
-     * This can only be called when table lock is held.
+     * Record an access of a file, it will be applied to the policy later
      * 
-     * @param file {@link CacheFile} The file to remove
+     * The access is buffered without lock. When enough accesses are buffered,
+     * they are drained if the table lock is free, otherwise the holder of the
+     * table lock will drain them.
+     * 
+     * @param file {@link CacheFile} The file accessed
      */
-    private void removeFromLRU(CacheFile file) {
-        if (file.getPrev() != null) {
-            file.getPrev().setNext(file.getNext());
-        } else {
-            mostRecentUsed = file.getNext();
+    public void updateLRU(CacheFile file) {
+        accessBuffer.offer(file);
+        if (bufferedAccesses.incrementAndGet() >= DRAIN_THRESHOLD && tableLock.tryLock()) {
+            drainAccessBuffer();
+            tableLock.unlock();
         }
-        if (file.getNext() != null) {
-            file.getNext().setPrev(file.getPrev());
-        } else {
-            leastRecentUsed = file.getPrev();
+    }
+
+    /**
+     * Apply buffered accesses to the policy in order
+     * 
+     * This can only be called when table lock is held.
+     */
+    private void drainAccessBuffer() {
+        CacheFile file = null;
+        while ((file = accessBuffer.poll()) != null) {
+            bufferedAccesses.decrementAndGet();
+            if (cacheFileTable.get(file.getRelativePath()) != file) {
+                continue; // Removed or replaced since the access
+            }
+            policy.onAccess(file);
+            index.access(file.getRelativePath());
         }
-        file.setNext(null);
-        file.setPrev(null);
+        index.flush();
     }
 
     /**
-     * Move a file to the head of LRU
+     * Journal the newest version of a file in the index
      * 
      * This can only be called when table lock is held.
+     * Partially cached versions are not journaled, since their content can't be
+     * used after a restart.
      * 
-     * @param file {@link CacheFile} The file to move
+     * @param file {@link CacheFile} The file updated
      */
-    public void updateLRU(CacheFile file) {
-        tableLock.lock();
-        removeFromLRU(file);
-        insertToLRU(file);
-        tableLock.unlock();
+    private void recordNewest(CacheFile file) {
+        CacheIndexEntry entry = file.getNewestIndexEntry();
+        if (entry != null) {
+            index.put(entry);
+        } else {
+            index.remove(file.getRelativePath());
+        }
     }
 
     /**
-     * Get the status of LRU list
+     * Restore the cache from the persistent index
      * 
-     * @return {@link String} The file sequence in LRU list
+     * This is called once at startup before serving clients. Entries whose
+     * content is missing or has a different size are dropped, files of versions
+     * not in the index are deleted, then the index is rewritten with the
+     * restored entries.
      */
-    private String getLRUStatus() {
-        String status = "LRU status: ";
-        CacheFile file = mostRecentUsed;
-        while (file != null) {
-            status += file.getRelativePath() + " ";
-            file = file.getNext();
+    public void restore() {
+        List<CacheIndexEntry> restored = new ArrayList<CacheIndexEntry>();
+        for (CacheIndexEntry entry : index.load()) {
+            File content = new File(CacheFileVersion.getCacheLocation(entry.getRelativePath(), entry.getVerId()));
+            if (!content.isFile() || content.length() != entry.getSize()) {
+                Logger.log("Drop invalid cache index entry: " + entry.getRelativePath());
+                continue;
+            }
+            // Reserve space before taking the table lock, it may evict restored files
+            CacheFileVersion fileVersion = new CacheFileVersion(entry);
+            if (fileVersion.isDeleted()) {
+                continue;
+            }
+            tableLock.lock(); // Lock table lock
+            CacheFile file = new CacheFile(entry.getRelativePath(), fileVersion);
+            fileVersion.use(); // Used by the cache
+            putToTable(file);
+            policy.onInsert(file);
+            tableLock.unlock(); // Unlock table lock
+            restored.add(entry);
+        }
+
+        /* Keep entries not evicted meanwhile, and delete content of other versions */
+        tableLock.lock(); // Lock table lock
+        List<CacheIndexEntry> live = new ArrayList<CacheIndexEntry>();
+        HashSet<String> liveNames = new HashSet<String>();
+        for (CacheIndexEntry entry : restored) {
+            CacheFile file = cacheFileTable.get(entry.getRelativePath());
+            if (file != null && entry.getVerId().equals(file.getNewestVerId())) {
+                live.add(entry);
+                liveNames.add(
+                        new File(CacheFileVersion.getCacheLocation(entry.getRelativePath(), entry.getVerId())).getName());
+            }
         }
-        return status;
+        File[] contents = new File(cacheDir).listFiles();
+        if (contents != null) {
+            for (File content : contents) {
+                if (content.isFile() && content.getName().matches(".*\\.[0-9a-f]{8}(-[0-9a-f]{4}){3}-[0-9a-f]{12}")
+                        && !liveNames.contains(content.getName())) {
+                    content.delete(); // Left by a version not in the index
+                }
+            }
+        }
+        index.rewrite(live);
+        Logger.log("Restored " + live.size() + " files from cache index");
+        tableLock.unlock(); // Unlock table lock
+    }
+
+    /**
+     * Get the ID of this proxy registered to the server
+     * 
+     * @return ID of the proxy, -1 if not registered
+     */
+    public int getProxyId() {
+        return proxyId;
     }
 
     /**
@@ -10,7 +10,7 @@ import java.util.UUID;
  * Abstraction of a file in the cache
  * 
  * It contains the newest version {@link CacheFileVersion} of the file
- * Also, it's a node of a doubly linked list(LRU list)
+ * Also, it's a node of a doubly linked list(LRU list of {@link LruPolicy})
  */
 public class CacheFile {
     /**
@@ -20,9 +20,9 @@ public class CacheFile {
     private String relativePath;
     /**
      * {@link CacheFileVersion}
-     * The newest version of the file
+     * The newest version of the file, read without lock by opens
      */
-    private CacheFileVersion newest;
+    private volatile CacheFileVersion newest;
     /**
      * {@link CacheFile}
      * The more recent used file in the LRU list
@@ -34,28 +34,11 @@ public class CacheFile {
      */
     private CacheFile next;
 
-    /**
-     * Constructor using server data as file content source
-     * 
-     * @param relativePath {@link String} Relative path of the file
-     * @param verId        {@link UUID} Version ID of the file
-     * @param canRead      {@link Boolean} True if the file can be read
-     * @param canWrite     {@link Boolean} True if the file can be written
-     * @param serverFd     File descriptor of the file in the server
-     * @param size         Size of the file
-     * @param firstChunk   First chunk of the file content
-     */
-    public CacheFile(String relativePath, UUID verId, Boolean canRead, Boolean canWrite, int serverFd, long size,
-            byte[] firstChunk) {
-        this.relativePath = relativePath;
-        this.newest = new CacheFileVersion(this, relativePath, verId, canRead, canWrite, 1, serverFd, size, firstChunk);
-        this.prev = null;
-        this.next = null;
-    }
-
     /**
      * Constructor using a file version as newest version
      * 
+     * The caller should use the file version for the cache.
+     * 
      * @param relativePath {@link String} Relative path of the file
      * @param fileVersion  {@link CacheFileVersion} The newest version of the file
      */
@@ -64,42 +47,41 @@ public class CacheFile {
         this.newest = fileVersion;
         this.prev = null;
         this.next = null;
+        fileVersion.setCacheFile(this);
     }
 
     /**
      * Open the file
      * 
+     * This takes no lock. If the newest version is replaced while opening it,
+     * the open is retried on the new newest version.
+     * 
      * @param read  {@link Boolean} True if the file is opened for reading
      * @param write {@link Boolean} True if the file is opened for writing
      * @return {@link FileOpenResult} The result of the file open operation
      */
     public FileOpenResult open(Boolean read, Boolean write) {
-        if (write) {
-            // If the file is opened for writing, clone the newest version to get a write
-            // copy version
-            CacheFileVersion writeCopy = newest.getWriteCopy();
-            if (writeCopy == null) {
-                return new FileOpenResult(ResCode.ENOENT, null);
+        while (true) {
+            CacheFileVersion version = newest;
+            FileOpenResult result = null;
+            if (write) {
+                // If the file is opened for writing, clone the newest version to get a write
+                // copy version
+                CacheFileVersion writeCopy = version.getWriteCopy();
+                if (writeCopy == null) {
+                    result = new FileOpenResult(ResCode.ENOENT, null);
+                } else if (writeCopy.isDeleted()) {
+                    return new FileOpenResult(ResCode.ENOSPC, null); // No space for the copy
+                } else {
+                    result = writeCopy.open(read, write);
+                }
+            } else {
+                result = version.open(read, write);
+            }
+            if (result.getResCode() != ResCode.ENOENT || version == newest) {
+                return result;
             }
-            return writeCopy.open(read, write);
         }
-        return newest.open(read, write);
-    }
-
-    /**
-     * Update the file with server data
-     * 
-     * @param verId      {@link UUID} Version ID of the file
-     * @param canRead    {@link Boolean} True if the file can be read
-     * @param canWrite   {@link Boolean} True if the file can be written
-     * @param serverFd   File descriptor of the file in the server
-     * @param size       Size of the file
-     * @param firstChunk First chunk of the file content
-     */
-    public void update(UUID verId, Boolean canRead, Boolean canWrite, int serverFd, long size, byte[] firstChunk) {
-        newest.release(); // Release the old newest version
-        newest.setCacheFile(null); // Set the old newest version's cache file to null
-        newest = new CacheFileVersion(this, relativePath, verId, canRead, canWrite, 1, serverFd, size, firstChunk);
     }
 
     /**
@@ -109,11 +91,12 @@ public class CacheFile {
      *                    file
      */
     public void update(CacheFileVersion fileVersion) {
-        newest.release(); // Release the old newest version
-        newest.setCacheFile(null); // Set the old newest version's cache file to null
+        CacheFileVersion old = newest;
         fileVersion.use(); // Use the new newest version
         fileVersion.setCacheFile(this); // Set the new newest version's cache file to this
-        newest = fileVersion;
+        newest = fileVersion; // Publish before releasing the old one, so opens retry on it
+        old.setCacheFile(null); // Set the old newest version's cache file to null
+        old.release(); // Release the old newest version
     }
 
     /**
@@ -196,6 +179,46 @@ public class CacheFile {
         return newest.getSize();
     }
 
+    /**
+     * Get the entry of the newest version in the persistent cache index
+     * 
+     * @return {@link CacheIndexEntry} The entry, null if the newest version is not
+     *         fully in the cache
+     */
+    public CacheIndexEntry getNewestIndexEntry() {
+        return newest.getIndexEntry();
+    }
+
+    /**
+     * Extend the read lease of the newest version, if it's still the version
+     * leased
+     * 
+     * @param verId  {@link UUID} Version ID leased by the server
+     * @param expiry Time when the lease expires, in System.nanoTime()
+     */
+    public void extendLease(UUID verId, long expiry) {
+        CacheFileVersion version = newest;
+        if (verId.equals(version.getVerId())) {
+            version.extendLease(expiry);
+        }
+    }
+
+    /**
+     * Revoke the read lease of the newest version
+     */
+    public void revokeLease() {
+        newest.revokeLease();
+    }
+
+    /**
+     * Check if the newest version has a valid read lease
+     * 
+     * @return {@link Boolean} True if it can be opened without checking the server
+     */
+    public Boolean hasLease() {
+        return newest.hasLease();
+    }
+
     /**
      * Get the newest version ID of the file
      * 
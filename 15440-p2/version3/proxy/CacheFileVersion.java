@@ -8,8 +8,24 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.rmi.RemoteException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Abstraction of a file version in the cache
@@ -18,6 +34,15 @@ import java.util.UUID;
  * file
  * It manages the refence count of the file version, automatically delete the
  * file version when refCount is 0
+ * In block cache mode, a file version from server may be partially cached. It
+ * keeps the openfile on server and fetches missing blocks on demand.
+ * A bypass version is a file version not admitted to the cache, it has no
+ * content in the cache, reads are streamed from the openfile on server.
+ * A write copy keeps the version ID of the version it was copied from and the
+ * {@link DirtyRanges} written since, so only the written ranges are uploaded as
+ * a delta of the base. The MD5 digest of a base block is taken before the block
+ * is first written, a block whose content ends up the same as the base is not
+ * uploaded even though it was written.
  */
 public class CacheFileVersion {
     /**
@@ -55,6 +80,11 @@ public class CacheFileVersion {
      * True if the file is deleted
      */
     private Boolean isDeleted;
+    /**
+     * {@link Boolean}
+     * True if the file is deleted because its content couldn't be fetched
+     */
+    private Boolean fetchFailed;
     /**
      * {@link Boolean}
      * True if the file is modified
@@ -65,6 +95,85 @@ public class CacheFileVersion {
      * Size of the file
      */
     private long size;
+    /**
+     * {@link long}
+     * Cache space reserved by this file version
+     */
+    private long reservedSize;
+    /**
+     * File descriptor of the file in the server to fetch missing blocks, -1 if
+     * the file version is fully cached
+     */
+    private int serverFd;
+    /**
+     * {@link BitSet}
+     * Blocks in the cache, indexed by offset / CHUNK_SIZE, null if the file
+     * version is fully cached
+     */
+    private BitSet cachedBlocks;
+    /**
+     * {@link ReentrantLock}
+     * The lock to protect cachedBlocks and serverFd
+     */
+    private ReentrantLock fetchLock;
+    /**
+     * {@link Boolean}
+     * True if this is a bypass version, not stored in the cache
+     */
+    private Boolean bypass;
+    /**
+     * {@link byte[]}
+     * First chunk of the content of a bypass version, null if not bypass
+     */
+    private byte[] firstChunk;
+    /**
+     * Time when the read lease from the server expires, in System.nanoTime()
+     */
+    private volatile long leaseExpiry;
+    /**
+     * {@link UUID}
+     * Version ID of the version this write copy was copied from, null if not a
+     * write copy
+     */
+    private UUID baseVerId;
+    /**
+     * {@link DirtyRanges}
+     * Ranges written since the copy was made, null if not a write copy
+     */
+    private DirtyRanges dirtyRanges;
+    /**
+     * Size of the base version, 0 if not a write copy
+     */
+    private long baseSize;
+    /**
+     * {@link Map}<{@link Long}, {@link byte[]}>
+     * MD5 digest of each written block of the base version, by offset /
+     * CHUNK_SIZE, taken before the block is first written. Null if not a write
+     * copy
+     */
+    private Map<Long, byte[]> baseDigests;
+    /**
+     * {@link MappedByteBuffer}
+     * Read-only mapping of the content shared by open files reading this
+     * version, null until the first one is opened
+     */
+    private MappedByteBuffer mapping;
+    /**
+     * {@link ByteBuffer}
+     * Slice of the memory tier holding the content, null if the content is on
+     * disk
+     */
+    private ByteBuffer memory;
+    /**
+     * {@link VersionStorage}
+     * Storage of the content shared by open files, uploads and copies of this
+     * version, null when nobody uses it
+     */
+    private VersionStorage storage;
+    /**
+     * Number of users of the storage
+     */
+    private int storageUsers;
 
     /**
      * Constructor using server data as file content source
@@ -76,10 +185,12 @@ public class CacheFileVersion {
      * @param canRead         {@link Boolean} True if the file can be read
      * @param canWrite        {@link Boolean} True if the file can be written
      * @param initialRefCount Initial reference count of the file version
-     * @param raf             {@link RandomAccessFile} Data source of the file
+     * @param source          {@link VersionStorage} Data source of the file,
+     *                        null for an empty file
+     * @param sourceSize      Size of the data source
      */
     public CacheFileVersion(CacheFile cacheFile, String relativePath, UUID verId, Boolean canRead, Boolean canWrite,
-            long initialRefCount, RandomAccessFile raf) {
+            long initialRefCount, VersionStorage source, long sourceSize) {
         this.cacheFile = cacheFile;
         this.relativePath = relativePath;
         this.verId = verId;
@@ -87,8 +198,24 @@ public class CacheFileVersion {
         this.canRead = canRead;
         this.canWrite = canWrite;
         this.isDeleted = false;
+        this.fetchFailed = false;
         this.isModified = false;
         this.size = 0;
+        this.reservedSize = 0;
+        this.serverFd = -1;
+        this.cachedBlocks = null;
+        this.fetchLock = new ReentrantLock();
+        this.bypass = false;
+        this.firstChunk = null;
+        this.leaseExpiry = System.nanoTime();
+        this.baseVerId = null;
+        this.dirtyRanges = null;
+        this.baseSize = 0;
+        this.baseDigests = null;
+        this.mapping = null;
+        this.memory = null;
+        this.storage = null;
+        this.storageUsers = 0;
         File file = new File(getCacheLocation());
         try {
             file.createNewFile();
@@ -96,8 +223,8 @@ public class CacheFileVersion {
             e.printStackTrace();
         }
 
-        if (raf != null) {
-            initFileContent(raf); // initialize the file content
+        if (source != null) {
+            initFileContent(source, sourceSize); // initialize the file content
         }
     }
 
@@ -124,19 +251,112 @@ public class CacheFileVersion {
         this.canRead = canRead;
         this.canWrite = canWrite;
         this.isDeleted = false;
+        this.fetchFailed = false;
         this.isModified = false;
         this.size = 0;
-        File file = new File(getCacheLocation());
-        if (file.exists()) {
-            file.delete();
-        }
-        try {
-            file.createNewFile();
-        } catch (Exception e) {
-            e.printStackTrace();
+        this.reservedSize = 0;
+        this.serverFd = -1;
+        this.cachedBlocks = null;
+        this.fetchLock = new ReentrantLock();
+        this.bypass = false;
+        this.firstChunk = null;
+        this.leaseExpiry = System.nanoTime();
+        this.baseVerId = null;
+        this.dirtyRanges = null;
+        this.baseSize = 0;
+        this.baseDigests = null;
+        this.mapping = null;
+        this.memory = null;
+        this.storage = null;
+        this.storageUsers = 0;
+
+        if (Proxy.BLOCK_CACHE && firstChunk.length < size) {
+            createContentFile();
+            initPartialContent(serverFd, size, firstChunk); // only keep the first block, fetch others on demand
+        } else {
+            initFileContent(serverFd, size, firstChunk); // initialize the file content
         }
+    }
+
+    /**
+     * Constructor of a bypass version, streaming server data without caching
+     * 
+     * It's never in the cache, it's deleted when the last open file is closed.
+     * 
+     * @param relativePath {@link String} Relative path of the file
+     * @param verId        {@link UUID} Version ID of the file
+     * @param canRead      {@link Boolean} True if the file can be read
+     * @param canWrite     {@link Boolean} True if the file can be written
+     * @param serverFd     File descriptor of the file in the server
+     * @param size         Size of the file
+     * @param firstChunk   First chunk of the file content
+     */
+    public CacheFileVersion(String relativePath, UUID verId, Boolean canRead, Boolean canWrite, int serverFd,
+            long size, byte[] firstChunk) {
+        this.cacheFile = null;
+        this.relativePath = relativePath;
+        this.verId = verId;
+        this.refCount = 0;
+        this.canRead = canRead;
+        this.canWrite = canWrite;
+        this.isDeleted = false;
+        this.fetchFailed = false;
+        this.isModified = false;
+        this.size = size;
+        this.reservedSize = 0;
+        this.serverFd = serverFd;
+        this.cachedBlocks = null;
+        this.fetchLock = new ReentrantLock();
+        this.bypass = true;
+        this.firstChunk = firstChunk;
+        this.leaseExpiry = System.nanoTime();
+        this.baseVerId = null;
+        this.dirtyRanges = null;
+        this.baseSize = 0;
+        this.baseDigests = null;
+        this.mapping = null;
+        this.memory = null;
+        this.storage = null;
+        this.storageUsers = 0;
+    }
 
-        initFileContent(serverFd, size, firstChunk); // initialize the file content
+    /**
+     * Constructor of a version restored from the persistent cache index
+     * 
+     * The content is already in the cache from before the restart, only its
+     * space is reserved again. If there's no space for it, it's deleted.
+     * 
+     * @param entry {@link CacheIndexEntry} The entry of the version in the index
+     */
+    public CacheFileVersion(CacheIndexEntry entry) {
+        this.cacheFile = null;
+        this.relativePath = entry.getRelativePath();
+        this.verId = entry.getVerId();
+        this.refCount = 0;
+        this.canRead = entry.getCanRead();
+        this.canWrite = entry.getCanWrite();
+        this.isDeleted = false;
+        this.fetchFailed = false;
+        this.isModified = false;
+        this.size = entry.getSize();
+        this.reservedSize = 0;
+        this.serverFd = -1;
+        this.cachedBlocks = null;
+        this.fetchLock = new ReentrantLock();
+        this.bypass = false;
+        this.firstChunk = null;
+        this.leaseExpiry = System.nanoTime();
+        this.baseVerId = null;
+        this.dirtyRanges = null;
+        this.baseSize = 0;
+        this.baseDigests = null;
+        this.mapping = null;
+        this.memory = null;
+        this.storage = null;
+        this.storageUsers = 0;
+        if (!reserveSize(size)) {
+            failNoSpace();
+        }
     }
 
     /**
@@ -157,31 +377,107 @@ public class CacheFileVersion {
     /**
      * Releases this file version
      * 
-     * This method is synchronized to keep the refCount consistent
+     * The refCount is updated in a synchronized block, the cache is updated after
+     * leaving it, so the cache locks are never taken with this file version
+     * locked.
      */
-    public synchronized void release() {
-        if (isDeleted) {
-            return; // return, already deleted
+    public void release() {
+        Boolean toUpload = false;
+        Boolean toDelete = false;
+        Boolean evictable = false;
+        synchronized (this) {
+            if (isDeleted) {
+                return; // return, already deleted
+            }
+            refCount--;
+            if (refCount == 0) {
+                Logger.log("File: " + relativePath + " is released");
+                if (isModified) {
+                    isModified = false;
+                    toUpload = true;
+                } else {
+                    isDeleted = true;
+                    toDelete = true;
+                }
+            } else if (refCount == 1 && cacheFile != null) {
+                evictable = true; // Only the cache uses it now
+            }
+            Logger.log("File after releasing: " + relativePath + " refCount: " + refCount);
         }
-        refCount--;
-        if (refCount == 0) {
+
+        if (toUpload) {
+            // If the file is modified, make this version as formal newest version in the
+            // cache, then upload to server in background
+            updateCache();
+            Proxy.getUploader().submit(this);
+        } else if (toDelete) {
             // delete the file version if refCount is 0
-            Logger.log("File: " + relativePath + " is released");
-            File file = new File(getCacheLocation());
-            if (isModified) {
-                // If the file is modified, make this version as formal newest version in the
-                // cache, also upload to server
-                isModified = false;
-                updateCache();
-                uploadToServer();
-            } else {
-                // If the file is not modified, just delete the file
-                file.delete();
-                Proxy.getCache().releaseSize(size);
-                isDeleted = true;
+            deleteContent();
+        } else if (evictable) {
+            Proxy.getCache().notifyEvictable();
+        }
+    }
+
+    /**
+     * Create an empty file for the content in the cache directory
+     */
+    private void createContentFile() {
+        File file = new File(getCacheLocation());
+        if (file.exists()) {
+            file.delete();
+        }
+        try {
+            file.createNewFile();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Delete the content of this file version and give back its cache space
+     */
+    private void deleteContent() {
+        Boolean inMemory = false;
+        synchronized (this) {
+            if (memory != null) {
+                inMemory = true;
+                Proxy.getMemoryTier().free(this, memory);
+                memory = null;
             }
         }
-        Logger.log("File after releasing: " + relativePath + " refCount: " + refCount);
+        if (!bypass && !inMemory) {
+            File file = new File(getCacheLocation());
+            file.delete();
+        }
+        mapping = null; // Unmapped when the open files reading it are gone
+        closeServerFd();
+        Proxy.getCache().releaseSize(reservedSize);
+        reservedSize = 0;
+    }
+
+    /**
+     * Mark this file version as deleted because there's no cache space for its
+     * content
+     */
+    private void failNoSpace() {
+        Logger.log("No cache space for file: " + relativePath);
+        synchronized (this) {
+            isDeleted = true;
+        }
+        deleteContent();
+    }
+
+    /**
+     * Mark this file version as deleted because its content couldn't be fetched
+     * from the server
+     */
+    private void failFetch() {
+        Logger.log("Failed to fetch file: " + relativePath);
+        synchronized (this) {
+            isDeleted = true;
+            fetchFailed = true;
+        }
+        deleteContent();
     }
 
     /**
@@ -201,26 +497,35 @@ public class CacheFileVersion {
         String mode = "";
         if (read) {
             if (!canRead) {
+                release(); // A bypass version is deleted with it and closes its openfile on server
                 return new FileOpenResult(ResCode.EACCES, null);
             }
             mode += "r";
         }
         if (write) {
             if (!canWrite) {
+                release();
                 return new FileOpenResult(ResCode.EACCES, null);
             }
             mode += "w";
         }
+        if (bypass) {
+            return new FileOpenResult(ResCode.SUCCESS, new OpenFile(read, write, this, null)); // Read by readThrough
+        }
+        if (Proxy.MMAP_READ && !write) {
+            MappedByteBuffer map = getMapping();
+            if (map != null) {
+                return new FileOpenResult(ResCode.SUCCESS, new OpenFile(this, map)); // Read from the mapping
+            }
+        }
 
-        /* Open a RandomAccessFile to emulate open file in C */
-        File file = new File(getCacheLocation());
-        RandomAccessFile raf = null;
-        try {
-            raf = new RandomAccessFile(file, mode);
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
+        /* Share the storage of this version, the open file only keeps its offset */
+        VersionStorage content = acquireStorage(write);
+        if (content == null) {
+            release();
+            return new FileOpenResult(ResCode.EIO, null);
         }
-        return new FileOpenResult(ResCode.SUCCESS, new OpenFile(read, write, this, raf));
+        return new FileOpenResult(ResCode.SUCCESS, new OpenFile(read, write, this, content));
     }
 
     /**
@@ -232,127 +537,531 @@ public class CacheFileVersion {
         if (!use()) { // return null if file is deleted
             return null;
         }
-        RandomAccessFile raf = getRAF();
-        // Create a new file version for writing using this file version as source
-        CacheFileVersion writeCopy = new CacheFileVersion(null, relativePath, UUID.randomUUID(), true, true, 0, raf);
-        try {
-            raf.close();
-        } catch (Exception e) {
-            e.printStackTrace();
+        if (!fetchBlocks(0, size)) { // the copy needs the whole content
+            release();
+            return null;
+        }
+        VersionStorage source = acquireStorage(false);
+        if (source == null) {
+            release();
+            return null;
         }
+        // Create a new file version for writing using this file version as source
+        CacheFileVersion writeCopy = new CacheFileVersion(null, relativePath, UUID.randomUUID(), true, true, 0,
+                source, size);
+        writeCopy.baseVerId = verId;
+        writeCopy.dirtyRanges = new DirtyRanges();
+        writeCopy.baseSize = size;
+        writeCopy.baseDigests = new HashMap<Long, byte[]>();
+        releaseStorage();
         release(); // release the original file
         return writeCopy;
     }
 
     /**
      * Uploads this file to server
+     * 
+     * @return {@link Boolean} True if the file is committed on the server
      */
-    private void uploadToServer() {
-        RandomAccessFile raf = getRAF();
+    public Boolean uploadToServer() {
+        VersionStorage source = acquireStorage(false);
 
-        /* First open a fd on server for writing by chunk later */
+        /*
+         * First open a fd on server for writing by chunk later, as changes to the base
+         * version if the server still has it
+         */
         int serverFd = -1;
+        Boolean delta = false;
         try {
-            serverFd = Proxy.getServer().putFile(relativePath, verId);
+            if (baseVerId != null) {
+                serverFd = Proxy.getServer().putFileDelta(relativePath, verId, baseVerId, size);
+                delta = serverFd >= 0;
+            }
+            if (serverFd < 0 && serverFd != ResCode.ENFILE) {
+                serverFd = Proxy.getServer().putFile(relativePath, verId);
+            }
+            if (serverFd == ResCode.ENFILE) {
+                Logger.log("Server has too many open files to upload " + relativePath);
+            }
         } catch (RemoteException e) {
             e.printStackTrace();
         }
 
-        /* Upload data by chunk */
-        long remaining = size;
-        int uploadSize = 0;
-        byte[] data = null;
-        while (remaining > 0) {
+        /*
+         * Upload data by chunk, several chunks are written at the same time. A delta
+         * only sends the dirty ranges, the server copied the rest from the base
+         * version. Chunks are split at block boundaries so a delta can skip the
+         * blocks written back to their base content
+         */
+        List<long[]> ranges = new ArrayList<long[]>();
+        if (delta) {
+            ranges = dirtyRanges.getRanges(size);
+        } else {
+            ranges.add(new long[] { 0, size });
+        }
+        Boolean success = serverFd >= 0 && source != null;
+        long sentSize = 0;
+        ArrayDeque<Future<Object>> inFlight = new ArrayDeque<Future<Object>>();
+        Map<Long, Boolean> unchangedBlocks = new HashMap<Long, Boolean>();
+        try {
+            for (long[] range : ranges) {
+                long end = range[0] + range[1];
+                long offset = range[0];
+                while (success && offset < end) {
+                    long block = offset / Server.CHUNK_SIZE;
+                    int uploadSize = (int) (Math.min(end, (block + 1) * Server.CHUNK_SIZE) - offset);
+                    long chunkOffset = offset;
+                    offset += uploadSize;
+                    if (delta && unchangedBlocks.computeIfAbsent(block, this::isUnchanged)) {
+                        continue; // same as the base, the server copied it
+                    }
+                    if (inFlight.size() >= Proxy.UPLOAD_WINDOW) {
+                        inFlight.poll().get(); // wait for the oldest chunk to free the window
+                    }
+                    // Only full chunks use pooled buffers, the others are sent as they are
+                    byte[] data = uploadSize == Server.CHUNK_SIZE ? Proxy.getBufferPool().acquire()
+                            : new byte[uploadSize];
+                    try {
+                        readFully(source, chunkOffset, data, uploadSize);
+                    } catch (IOException e) {
+                        if (data.length == Server.CHUNK_SIZE) {
+                            Proxy.getBufferPool().release(data); // never handed to writeChunk
+                        }
+                        throw e;
+                    }
+                    sentSize += uploadSize;
+                    int fd = serverFd;
+                    inFlight.add(Proxy.getTransferPool().submit(() -> writeChunk(fd, chunkOffset, data)));
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                inFlight.poll().get();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            success = false;
+        } finally {
+            // Wait for the chunks still in flight, none may land after the fd is aborted or reused
+            for (Future<Object> write : inFlight) {
+                try {
+                    write.get();
+                } catch (Exception e) {
+                    success = false;
+                }
+            }
+        }
+
+        if (success) {
+            Logger.log("Upload " + relativePath + (delta ? " as delta" : "") + ": sent " + sentSize + " of " + size
+                    + " bytes");
             try {
-                uploadSize = (int) Math.min(remaining, Server.CHUNK_SIZE);
-                data = new byte[uploadSize];
-                raf.read(data);
-                Proxy.getServer().writeFile(serverFd, data); // write one chunk to server
-                remaining -= uploadSize;
-            } catch (Exception e) {
+                Proxy.getServer().closeFile(serverFd); // all chunks written, commit the file on server
+            } catch (RemoteException e) {
                 e.printStackTrace();
+                success = false; // the openfile is gone on server, nothing to abort
+            }
+        } else {
+            Logger.log("Upload of " + relativePath + " failed, not committed");
+            if (serverFd >= 0) {
+                try {
+                    Proxy.getServer().abortFile(serverFd); // discard the partly written file on server
+                } catch (RemoteException e) {
+                    e.printStackTrace();
+                }
             }
         }
-        try {
-            Proxy.getServer().closeFile(serverFd);
-        } catch (RemoteException e) {
-            e.printStackTrace();
+        if (source != null) {
+            releaseStorage();
+        }
+        return success;
+    }
+
+    /**
+     * Read a range of the content from a storage, until it's filled
+     * 
+     * @param source {@link VersionStorage} The storage to read from
+     * @param offset Offset of the range
+     * @param data   {@link byte[]} Buffer for the range
+     * @param length Length of the range
+     * @throws IOException
+     */
+    private static void readFully(VersionStorage source, long offset, byte[] data, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+        while (buffer.hasRemaining()) {
+            if (source.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+    }
+
+    /**
+     * Write a buffer to a storage at an offset, until it's all written
+     * 
+     * @param target {@link VersionStorage} The storage to write to
+     * @param offset Offset to write at
+     * @param data   {@link byte[]} Data to write
+     * @throws IOException
+     */
+    private static void writeFully(VersionStorage target, long offset, byte[] data) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            target.write(buffer, offset + buffer.position());
         }
+    }
+
+    /**
+     * Write one chunk to the server
+     * 
+     * @param serverFd File descriptor of the file in the server
+     * @param offset   Offset of the chunk in the file
+     * @param data     {@link byte[]} Data of the chunk, returned to the buffer
+     *                 pool after writing if it's a full chunk
+     * @return null
+     * @throws RemoteException
+     */
+    private Object writeChunk(int serverFd, long offset, byte[] data) throws RemoteException {
         try {
-            raf.close();
+            Proxy.getServer().writeFile(serverFd, offset, data);
+        } finally {
+            if (data.length == Server.CHUNK_SIZE) {
+                Proxy.getBufferPool().release(data);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Initializes the file content using the storage of another version
+     * 
+     * The content is copied without going through a buffer of the heap, by the
+     * kernel if the source is on disk.
+     * 
+     * @param source     {@link VersionStorage} The source of the file content
+     * @param sourceSize Size of the source
+     */
+    private void initFileContent(VersionStorage source, long sourceSize) {
+        this.size = sourceSize;
+        if (!reserveSize(size)) { // request space from cache
+            failNoSpace();
+            return;
+        }
+        try (FileChannel thisFile = FileChannel.open(Paths.get(getCacheLocation()), StandardOpenOption.WRITE)) {
+            long position = 0;
+            while (position < size) {
+                position += source.transferTo(position, size - position, thisFile);
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
     /**
-     * Initializes the file content using a RandomAccessFile
+     * Initializes the file content using server data
      * 
-     * @param raf {@link RandomAccessFile} The source of the file content
+     * @param serverFd   File descriptor of the file in the server
+     * @param size       Size of the file
+     * @param firstChunk First chunk of the file content
      */
-    private void initFileContent(RandomAccessFile raf) {
-        RandomAccessFile thisFile = getRAF();
+    private void initFileContent(int serverFd, long size, byte[] firstChunk) {
+        this.size = size;
+        if (!reserveSize(size)) { // request space from cache
+            this.serverFd = serverFd; // closed by failNoSpace
+            failNoSpace();
+            return;
+        }
+        if (Proxy.getMemoryTier().accepts(size)) {
+            memory = Proxy.getMemoryTier().allocate(size); // small file, keep it in memory if there's a slice
+        }
+        if (memory == null) {
+            createContentFile();
+        }
+        VersionStorage thisFile = acquireStorage(true);
         try {
-            this.size = raf.length();
-            Proxy.getCache().requestSize(size); // request space from cache
-
-            /* Read and Write By Chunk */
-            long remaining = size;
-            int readSize = 0;
-            byte[] data = null;
-            while (remaining > 0) {
-                readSize = (int) Math.min(remaining, Server.CHUNK_SIZE);
-                data = new byte[readSize];
-                raf.read(data); // read one chunk from source
-                thisFile.write(data); // write one chunk to this file version
-                remaining -= readSize;
+            writeFully(thisFile, 0, firstChunk);
+
+            /* Read and Write By Chunk, several chunks are fetched at the same time */
+            List<Long> offsets = new ArrayList<Long>();
+            for (long offset = firstChunk.length; offset < size; offset += Server.CHUNK_SIZE) {
+                offsets.add(offset);
             }
-            thisFile.close();
+            fetchChunks(thisFile, serverFd, offsets);
         } catch (IOException e) {
             e.printStackTrace();
+            releaseStorage();
+            this.serverFd = serverFd; // closed by failFetch
+            failFetch(); // don't publish a version with holes
+            return;
+        }
+        releaseStorage();
+        if (memory != null) {
+            Proxy.getMemoryTier().admit(this, memory);
+        }
+        if (serverFd >= 0) { // no openfile on server if the content was inlined
+            try {
+                Proxy.getServer().closeFile(serverFd); // all data fetched, close the openfile on server
+            } catch (RemoteException e) {
+                e.printStackTrace();
+            }
         }
     }
 
     /**
-     * Initializes the file content using server data
+     * Initializes a partially cached file content using server data
+     * 
+     * Only the first block is written, the cache file is extended to the full
+     * size so that blocks fetched later can be written at their offsets.
      * 
      * @param serverFd   File descriptor of the file in the server
      * @param size       Size of the file
      * @param firstChunk First chunk of the file content
      */
-    private void initFileContent(int serverFd, long size, byte[] firstChunk) {
+    private void initPartialContent(int serverFd, long size, byte[] firstChunk) {
+        this.serverFd = serverFd;
+        this.size = size;
+        this.cachedBlocks = new BitSet(getBlockCount());
         RandomAccessFile thisFile = getRAF();
         try {
-            thisFile.write(firstChunk);
+            thisFile.setLength(size);
+            if (firstChunk.length > 0) {
+                if (!reserveSize(firstChunk.length)) { // request space only for the first block
+                    thisFile.close();
+                    failNoSpace();
+                    return;
+                }
+                thisFile.write(firstChunk);
+                cachedBlocks.set(0);
+            }
+            thisFile.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
-        Proxy.getCache().requestSize(size); // request space from cache
+    }
+
+    /**
+     * Make sure the blocks covering a range are in the cache, fetch missing ones
+     * from the server
+     * 
+     * @param offset Offset of the range
+     * @param length Length of the range
+     * @return True if the range is cached, False if fetching failed
+     */
+    public Boolean fetchBlocks(long offset, long length) {
+        fetchLock.lock();
+        if (cachedBlocks == null || length <= 0 || offset >= size) {
+            fetchLock.unlock();
+            return true; // nothing to fetch
+        }
+
+        /* Find missing blocks in the range */
+        long end = Math.min(size, offset + length);
+        int lastBlock = (int) ((end - 1) / Server.CHUNK_SIZE);
+        List<Long> offsets = new ArrayList<Long>();
+        long missingSize = 0;
+        for (int block = cachedBlocks.nextClearBit((int) (offset / Server.CHUNK_SIZE)); block <= lastBlock; block = cachedBlocks
+                .nextClearBit(block + 1)) {
+            long blockOffset = (long) block * Server.CHUNK_SIZE;
+            offsets.add(blockOffset);
+            missingSize += Math.min(Server.CHUNK_SIZE, size - blockOffset);
+        }
 
-        /* Read and Write By Chunk */
-        long totalRead = firstChunk.length;
-        int readSize = 0;
-        byte[] data = null;
-        while (totalRead < size) {
+        if (!offsets.isEmpty() && !reserveSize(missingSize)) { // request space for missing blocks
+            fetchLock.unlock();
+            return false;
+        }
+        Boolean success = true;
+        if (!offsets.isEmpty()) {
+            RandomAccessFile thisFile = getRAF();
             try {
-                data = Proxy.getServer().readFile(serverFd); // read one chunk from server
-            } catch (RemoteException e) {
+                try {
+                    fetchChunks(new DiskStorage(thisFile.getChannel()), serverFd, offsets);
+                } catch (IOException e) {
+                    // The openfile on server may be aborted as idle, open the version again and retry
+                    if (!reopenServerFd(serverFd)) {
+                        throw e;
+                    }
+                    fetchChunks(new DiskStorage(thisFile.getChannel()), serverFd, offsets);
+                }
+                for (long blockOffset : offsets) {
+                    cachedBlocks.set((int) (blockOffset / Server.CHUNK_SIZE));
+                }
+            } catch (IOException e) {
                 e.printStackTrace();
+                success = false;
             }
-            readSize = data.length;
             try {
-                thisFile.write(data);
+                thisFile.close();
             } catch (IOException e) {
                 e.printStackTrace();
             }
-            totalRead += readSize;
         }
+
+        if (cachedBlocks.cardinality() == getBlockCount()) {
+            // All blocks are cached, the openfile on server is no longer needed
+            Logger.log("File: " + relativePath + " is fully cached");
+            cachedBlocks = null;
+            closeServerFd();
+        }
+        fetchLock.unlock();
+        return success;
+    }
+
+    /**
+     * Read a range of a bypass version from the server
+     * 
+     * At most one chunk is read, the caller gets a short read like from a pipe.
+     * 
+     * @param offset Offset of the range
+     * @param length Max length of the range
+     * @return {@link byte[]} Data read, empty at the end of the file, null if
+     *         reading failed
+     */
+    public byte[] readThrough(long offset, int length) {
+        int readSize = (int) Math.max(0, Math.min(Math.min(length, Server.CHUNK_SIZE), size - offset));
+        if (readSize == 0) {
+            return new byte[0];
+        }
+        if (offset < firstChunk.length) {
+            // Served from the first chunk, no round trip
+            readSize = (int) Math.min(readSize, firstChunk.length - offset);
+            byte[] data = new byte[readSize];
+            System.arraycopy(firstChunk, (int) offset, data, 0, readSize);
+            return data;
+        }
+        int fd = serverFd;
         try {
-            thisFile.close();
-        } catch (IOException e) {
+            return Proxy.getServer().readFile(fd, offset, readSize);
+        } catch (RemoteException e) {
             e.printStackTrace();
         }
-        this.size = size;
+        // The openfile on server may be aborted as idle, open the version again and retry
+        fetchLock.lock();
+        Boolean reopened = reopenServerFd(fd);
+        fd = serverFd;
+        fetchLock.unlock();
+        if (!reopened) {
+            return null;
+        }
+        try {
+            return Proxy.getServer().readFile(fd, offset, readSize);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Open this version on the server again after a read with its openfile failed
+     * 
+     * A proxy may hold the openfile of a partially cached or bypass version
+     * longer than the server keeps an idle openfile. The version can be opened
+     * again as long as it's still the current version on the server.
+     * This can only be called when fetchLock is held.
+     * 
+     * @param failedFd File descriptor the read failed with
+     * @return True if serverFd is an openfile of this version again, False if the
+     *         server no longer has this version
+     */
+    private Boolean reopenServerFd(int failedFd) {
+        if (serverFd != failedFd) {
+            return serverFd >= 0; // Reopened by another reader meanwhile
+        }
+        try {
+            FileCheckResult result = Proxy.getServer().checkFile(relativePath, null, Proxy.getCache().getProxyId());
+            if (result.getServerFd() >= 0 && verId.equals(result.getVerId())) {
+                Logger.log("Reopened file: " + relativePath + " on server");
+                serverFd = result.getServerFd();
+                return true;
+            }
+            if (result.getServerFd() >= 0) {
+                Proxy.getServer().closeFile(result.getServerFd()); // A newer version, not what this version reads
+            }
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+        Logger.log("File: " + relativePath + " changed on server, version " + verId + " can't be read any more");
+        return false;
+    }
+
+    /**
+     * Fetch chunks from the server and write them at their offsets
+     * 
+     * Up to FETCH_WINDOW readFile requests are kept in flight, so the transfer is
+     * not bound by one round trip per chunk.
+     * 
+     * @param thisFile {@link VersionStorage} The storage to write chunks to
+     * @param serverFd File descriptor of the file in the server
+     * @param offsets  {@link List}<{@link Long}> Offsets of the chunks, each chunk
+     *                 is CHUNK_SIZE long or until the end of the file
+     * @throws IOException
+     */
+    private void fetchChunks(VersionStorage thisFile, int serverFd, List<Long> offsets) throws IOException {
+        ArrayDeque<Future<byte[]>> inFlight = new ArrayDeque<Future<byte[]>>();
+        int next = 0; // Next chunk to request
+        int done = 0; // Next chunk to write
+        try {
+            while (done < offsets.size()) {
+                /* Fill the window with requests */
+                while (next < offsets.size() && inFlight.size() < Proxy.FETCH_WINDOW) {
+                    long chunkOffset = offsets.get(next);
+                    int chunkSize = (int) Math.min(Server.CHUNK_SIZE, size - chunkOffset);
+                    inFlight.add(Proxy.getTransferPool()
+                            .submit(() -> Proxy.getServer().readFile(serverFd, chunkOffset, chunkSize)));
+                    next++;
+                }
+
+                /* Write the oldest chunk at its offset */
+                byte[] data = inFlight.poll().get();
+                if (data.length != Math.min(Server.CHUNK_SIZE, size - offsets.get(done))) {
+                    throw new IOException("Short chunk at offset " + offsets.get(done));
+                }
+                writeFully(thisFile, offsets.get(done), data);
+                done++;
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException(e);
+        } finally {
+            for (Future<byte[]> request : inFlight) {
+                request.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Close the openfile on server used to fetch missing blocks
+     */
+    private void closeServerFd() {
+        if (serverFd < 0) {
+            return;
+        }
+        try {
+            Proxy.getServer().closeFile(serverFd);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+        serverFd = -1;
+    }
+
+    /**
+     * Request space from cache and count it as reserved by this file version
+     * 
+     * @param sizeRequired The size to request
+     * @return True if reserved, False if there's no space in cache
+     */
+    private Boolean reserveSize(long sizeRequired) {
+        if (!Proxy.getCache().requestSize(sizeRequired)) {
+            return false;
+        }
+        reservedSize += sizeRequired;
+        return true;
+    }
+
+    /**
+     * Get the number of blocks of the file
+     * 
+     * @return The number of blocks
+     */
+    private int getBlockCount() {
+        return (int) ((size + Server.CHUNK_SIZE - 1) / Server.CHUNK_SIZE);
     }
 
     /**
@@ -385,11 +1094,133 @@ public class CacheFileVersion {
      * @return {@link String} The real save path of the file version in the cache
      */
     private String getCacheLocation() {
+        return getCacheLocation(relativePath, verId);
+    }
+
+    /**
+     * Get the real save path of a file version in the cache
+     * 
+     * @param relativePath {@link String} Relative path of the file
+     * @param verId        {@link UUID} Version ID of the file
+     * @return {@link String} The real save path of the file version in the cache
+     */
+    public static String getCacheLocation(String relativePath, UUID verId) {
         // Concatenate the cache root directory, the relative path and version ID and
         // convert all '/' to '_' to get the real save path
         return Proxy.getCache().getCacheDir() + relativePath.replace("/", "_") + "." + verId.toString();
     }
 
+    /**
+     * Get the read-only mapping of the content, map it on the first call
+     * 
+     * Only a fully cached version is mapped. A version opened for read is never
+     * written again: a write copy is only written by the open file that created
+     * it, before it's committed.
+     * 
+     * @return {@link MappedByteBuffer} The mapping, null if the version can't be
+     *         mapped
+     */
+    private MappedByteBuffer getMapping() {
+        fetchLock.lock();
+        try {
+            if (cachedBlocks != null || size > Integer.MAX_VALUE) {
+                return null; // blocks may still be fetched, or too large to map
+            }
+            if (mapping == null) {
+                VersionStorage source = acquireStorage(false);
+                if (source == null) {
+                    return null;
+                }
+                try {
+                    mapping = source.map(size); // null if the content is in memory already
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return null;
+                } finally {
+                    releaseStorage();
+                }
+            }
+            return mapping;
+        } finally {
+            fetchLock.unlock();
+        }
+    }
+
+    /**
+     * Use the storage of the content, open it if nobody uses it
+     * 
+     * Only the open file writing a write copy asks for a writable storage, and
+     * nobody else uses a write copy before it's committed.
+     * 
+     * @param write {@link Boolean} True if the storage is written
+     * @return {@link VersionStorage} The storage, null if it can't be opened
+     */
+    public synchronized VersionStorage acquireStorage(Boolean write) {
+        if (storage == null) {
+            if (memory != null) {
+                storage = new MemoryStorage(memory, size);
+            } else {
+                try {
+                    if (write) {
+                        storage = new DiskStorage(FileChannel.open(Paths.get(getCacheLocation()),
+                                StandardOpenOption.READ, StandardOpenOption.WRITE));
+                    } else {
+                        storage = new DiskStorage(FileChannel.open(Paths.get(getCacheLocation()),
+                                StandardOpenOption.READ));
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return null;
+                }
+            }
+        }
+        if (memory != null) {
+            Proxy.getMemoryTier().touch(this, memory);
+        }
+        storageUsers++;
+        return storage;
+    }
+
+    /**
+     * Stop using the storage of the content, close it with the last user
+     */
+    public synchronized void releaseStorage() {
+        storageUsers--;
+        if (storageUsers == 0) {
+            storage.close();
+            storage = null;
+        }
+    }
+
+    /**
+     * Move the content from the memory tier to disk
+     * 
+     * The slice is freed to the tier. A version in use is not demoted, its users
+     * share the memory storage.
+     * 
+     * @return {@link Boolean} True if demoted, False if it's not in memory, in
+     *         use or deleted
+     */
+    public synchronized Boolean demote() {
+        if (memory == null || storageUsers > 0 || isDeleted) {
+            return false;
+        }
+        try (FileChannel file = FileChannel.open(Paths.get(getCacheLocation()), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer content = memory.slice(0, (int) size);
+            while (content.hasRemaining()) {
+                file.write(content);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        Logger.log("File: " + relativePath + " is demoted to disk");
+        Proxy.getMemoryTier().free(this, memory);
+        memory = null;
+        return true;
+    }
+
     /**
      * Get the RandomAccessFile of this file version
      * 
@@ -443,19 +1274,191 @@ public class CacheFileVersion {
         return size;
     }
 
+    /**
+     * Mark a range as written, grow the file version if the range goes past its
+     * end
+     * 
+     * @param offset Offset of the range
+     * @param length Length of the range
+     * @return True if marked, False if there's no space in cache for the new size
+     */
+    public Boolean markWritten(long offset, long length) {
+        if (!setSize(offset + length)) {
+            return false;
+        }
+        if (dirtyRanges != null) {
+            recordBaseDigests(offset, length);
+            dirtyRanges.add(offset, length);
+        }
+        return true;
+    }
+
+    /**
+     * Take the digests of the base blocks a write is about to change, only for
+     * the blocks written the first time
+     * 
+     * @param offset Offset of the write
+     * @param length Length of the write
+     */
+    private void recordBaseDigests(long offset, long length) {
+        long end = Math.min(offset + length, baseSize);
+        synchronized (baseDigests) {
+            for (long block = offset / Server.CHUNK_SIZE; block * Server.CHUNK_SIZE < end; block++) {
+                if (!baseDigests.containsKey(block)) {
+                    // Not written yet, the content is still the base
+                    baseDigests.put(block, digestOfBlock(block, baseSize));
+                }
+            }
+        }
+    }
+
+    /**
+     * Check if a written block has the same content as in the base version
+     * 
+     * @param block Index of the block, offset / CHUNK_SIZE
+     * @return {@link Boolean} True if the block has the same length and digest
+     *         as the block of the base version
+     */
+    private Boolean isUnchanged(long block) {
+        byte[] baseDigest;
+        synchronized (baseDigests) {
+            baseDigest = baseDigests.get(block);
+        }
+        long start = block * Server.CHUNK_SIZE;
+        if (baseDigest == null || Math.min(Server.CHUNK_SIZE, size - start) != Math.min(Server.CHUNK_SIZE,
+                baseSize - start)) {
+            return false;
+        }
+        byte[] digest = digestOfBlock(block, size);
+        return digest != null && MessageDigest.isEqual(digest, baseDigest);
+    }
+
+    /**
+     * Compute the MD5 digest of a block of the content
+     * 
+     * @param block Index of the block, offset / CHUNK_SIZE
+     * @param limit Size of the content the block is clipped to
+     * @return {@link byte[]} The digest, null if the block can't be read
+     */
+    private byte[] digestOfBlock(long block, long limit) {
+        long start = block * Server.CHUNK_SIZE;
+        int length = (int) Math.min(Server.CHUNK_SIZE, limit - start);
+        VersionStorage source = acquireStorage(false);
+        if (source == null) {
+            return null;
+        }
+        byte[] data = Proxy.getBufferPool().acquire();
+        try {
+            readFully(source, start, data, length);
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            md5.update(data, 0, length);
+            return md5.digest();
+        } catch (IOException | NoSuchAlgorithmException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            Proxy.getBufferPool().release(data);
+            releaseStorage();
+        }
+    }
+
     /**
      * Set the size of the file version
      * 
      * @param size The size of the file version
+     * @return True if set, False if there's no space in cache for the new size
      */
-    public void setSize(long size) {
-        isModified = true;
+    public Boolean setSize(long size) {
         if (size > this.size) {
             // If the new size is larger than the old size, request more space from the
             // cache
-            Proxy.getCache().requestSize(size - this.size);
+            if (!reserveSize(size - this.size)) {
+                return false;
+            }
             this.size = size;
         }
+        isModified = true;
+        return true;
+    }
+
+    /**
+     * Get the entry of this file version in the persistent cache index
+     * 
+     * @return {@link CacheIndexEntry} The entry, null if the content is not fully
+     *         in the cache
+     */
+    public CacheIndexEntry getIndexEntry() {
+        fetchLock.lock();
+        Boolean fullyCached = cachedBlocks == null;
+        fetchLock.unlock();
+        if (!fullyCached || bypass || isDeleted() || isInMemory()) {
+            return null; // Content in memory doesn't survive a restart
+        }
+        return new CacheIndexEntry(relativePath, verId, size, canRead, canWrite);
+    }
+
+    /**
+     * Check if the content is in the memory tier
+     * 
+     * @return {@link Boolean} True if the content is in memory
+     */
+    public synchronized Boolean isInMemory() {
+        return memory != null;
+    }
+
+    /**
+     * Extend the read lease of this file version
+     * 
+     * @param expiry Time when the lease expires, in System.nanoTime()
+     */
+    public void extendLease(long expiry) {
+        if (expiry - leaseExpiry > 0) {
+            leaseExpiry = expiry;
+        }
+    }
+
+    /**
+     * Revoke the read lease of this file version
+     */
+    public void revokeLease() {
+        leaseExpiry = System.nanoTime();
+    }
+
+    /**
+     * Check if the read lease of this file version is valid
+     * 
+     * @return {@link Boolean} True if it can be used without checking the server
+     */
+    public Boolean hasLease() {
+        return leaseExpiry - System.nanoTime() > 0;
+    }
+
+    /**
+     * Check if this is a bypass version, not stored in the cache
+     * 
+     * @return {@link Boolean} True if this is a bypass version
+     */
+    public Boolean isBypass() {
+        return bypass;
+    }
+
+    /**
+     * Check if the file version is deleted
+     * 
+     * @return {@link Boolean} True if the file version is deleted
+     */
+    public synchronized Boolean isDeleted() {
+        return isDeleted;
+    }
+
+    /**
+     * Check if the file version is deleted because its content couldn't be
+     * fetched
+     * 
+     * @return {@link Boolean} True if fetching the content failed
+     */
+    public synchronized Boolean isFetchFailed() {
+        return fetchFailed;
     }
 
     /**
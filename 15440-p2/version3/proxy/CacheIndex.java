@@ -0,0 +1,254 @@
+
+/**
+ * CacheIndex.java
+ * 
+ * @author Cundao Yu <cundaoy@andrew.cmu.edu>
+ */
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Persistent index of the cache
+ * 
+ * It's a journal in the cache directory. Every change of the cache appends a
+ * record: PUT of the newest version of a file, ACCESS of a file, or REMOVE of
+ * a file. Replaying the journal at startup gives the cached files in recency
+ * order, so the cache comes back warm after a restart.
+ * The journal is rewritten with only the live entries when it grows too long.
+ * A torn record at the end, left by a crash, is ignored.
+ */
+public class CacheIndex {
+    /**
+     * Name of the journal file in the cache directory
+     */
+    public static final String JOURNAL_NAME = ".cacheindex";
+    /* Record types */
+    private static final byte PUT = 1;
+    private static final byte ACCESS = 2;
+    private static final byte REMOVE = 3;
+
+    /**
+     * {@link File}
+     * The journal file
+     */
+    private File journalFile;
+    /**
+     * {@link DataOutputStream}
+     * Stream appending to the journal, null if not opened
+     */
+    private DataOutputStream journal;
+    /**
+     * {@link LinkedHashMap}<{@link String}, {@link CacheIndexEntry}>
+     * Live entries, from the least recently used
+     */
+    private LinkedHashMap<String, CacheIndexEntry> entries;
+    /**
+     * Number of records in the journal
+     */
+    private long records;
+
+    /**
+     * Constructor
+     * 
+     * @param cacheDir {@link String} The directory of the cache
+     */
+    public CacheIndex(String cacheDir) {
+        this.journalFile = new File(cacheDir + JOURNAL_NAME);
+        this.journal = null;
+        this.entries = new LinkedHashMap<String, CacheIndexEntry>(16, 0.75f, true);
+        this.records = 0;
+    }
+
+    /**
+     * Replay the journal
+     * 
+     * @return {@link List}<{@link CacheIndexEntry}> Entries from the least
+     *         recently used
+     */
+    public synchronized List<CacheIndexEntry> load() {
+        entries.clear();
+        if (!journalFile.exists()) {
+            return new ArrayList<CacheIndexEntry>();
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(journalFile)))) {
+            while (true) {
+                byte type = in.readByte();
+                String relativePath = in.readUTF();
+                if (type == PUT) {
+                    UUID verId = new UUID(in.readLong(), in.readLong());
+                    long size = in.readLong();
+                    Boolean canRead = in.readBoolean();
+                    Boolean canWrite = in.readBoolean();
+                    entries.remove(relativePath); // Put at the most recently used
+                    entries.put(relativePath, new CacheIndexEntry(relativePath, verId, size, canRead, canWrite));
+                } else if (type == ACCESS) {
+                    entries.get(relativePath);
+                } else if (type == REMOVE) {
+                    entries.remove(relativePath);
+                } else {
+                    Logger.log("Unknown cache index record " + type + ", stop replaying");
+                    break;
+                }
+            }
+        } catch (EOFException e) {
+            // End of the journal, or a torn record
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return new ArrayList<CacheIndexEntry>(entries.values());
+    }
+
+    /**
+     * Rewrite the journal with the live entries and open it for appending
+     * 
+     * @param liveEntries {@link List}<{@link CacheIndexEntry}> Entries from the
+     *                    least recently used
+     */
+    public synchronized void rewrite(List<CacheIndexEntry> liveEntries) {
+        entries.clear();
+        for (CacheIndexEntry entry : liveEntries) {
+            entries.put(entry.getRelativePath(), entry);
+        }
+        compact();
+    }
+
+    /**
+     * Record the newest version of a file
+     * 
+     * @param entry {@link CacheIndexEntry} The entry of the newest version
+     */
+    public synchronized void put(CacheIndexEntry entry) {
+        entries.remove(entry.getRelativePath());
+        entries.put(entry.getRelativePath(), entry);
+        try {
+            if (journal != null) {
+                writePut(journal, entry);
+                journal.flush();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        onRecord();
+    }
+
+    /**
+     * Record an access of a file, not flushed until the next flush
+     * 
+     * @param relativePath {@link String} The relative path of the file
+     */
+    public synchronized void access(String relativePath) {
+        if (entries.get(relativePath) == null) {
+            return;
+        }
+        try {
+            if (journal != null) {
+                journal.writeByte(ACCESS);
+                journal.writeUTF(relativePath);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        onRecord();
+    }
+
+    /**
+     * Record a removal of a file
+     * 
+     * @param relativePath {@link String} The relative path of the file
+     */
+    public synchronized void remove(String relativePath) {
+        if (entries.remove(relativePath) == null) {
+            return;
+        }
+        try {
+            if (journal != null) {
+                journal.writeByte(REMOVE);
+                journal.writeUTF(relativePath);
+                journal.flush();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        onRecord();
+    }
+
+    /**
+     * Flush records to the journal
+     */
+    public synchronized void flush() {
+        try {
+            if (journal != null) {
+                journal.flush();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Count a record, compact the journal if it's much longer than the entries
+     */
+    private void onRecord() {
+        records++;
+        if (records > Math.max(1024, 4 * entries.size())) {
+            compact();
+        }
+    }
+
+    /**
+     * Write the live entries to a new journal, replace the old one by rename and
+     * open it for appending
+     */
+    private void compact() {
+        try {
+            if (journal != null) {
+                journal.close();
+            }
+            File tempFile = new File(journalFile.getPath() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+                for (CacheIndexEntry entry : entries.values()) {
+                    writePut(out, entry);
+                }
+            }
+            Files.move(tempFile.toPath(), journalFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+            records = entries.size();
+            journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journalFile, true)));
+        } catch (IOException e) {
+            e.printStackTrace();
+            journal = null; // Stop journaling, the cache still works without it
+        }
+    }
+
+    /**
+     * Write a PUT record
+     * 
+     * @param out   {@link DataOutputStream} The stream to write to
+     * @param entry {@link CacheIndexEntry} The entry
+     * @throws IOException
+     */
+    private static void writePut(DataOutputStream out, CacheIndexEntry entry) throws IOException {
+        out.writeByte(PUT);
+        out.writeUTF(entry.getRelativePath());
+        out.writeLong(entry.getVerId().getMostSignificantBits());
+        out.writeLong(entry.getVerId().getLeastSignificantBits());
+        out.writeLong(entry.getSize());
+        out.writeBoolean(entry.getCanRead());
+        out.writeBoolean(entry.getCanWrite());
+    }
+}
@@ -0,0 +1,74 @@
+
+/**
+ * CacheIndexEntry.java
+ * 
+ * @author Cundao Yu <cundaoy@andrew.cmu.edu>
+ */
+import java.util.UUID;
+
+/**
+ * An entry of the persistent cache index, the newest version of a cached file
+ */
+public class CacheIndexEntry {
+    /**
+     * {@link String}
+     * Relative path of the file
+     */
+    private String relativePath;
+    /**
+     * {@link UUID}
+     * Version ID of the file
+     */
+    private UUID verId;
+    /**
+     * Size of the file
+     */
+    private long size;
+    /**
+     * {@link Boolean}
+     * True if the file can be read
+     */
+    private Boolean canRead;
+    /**
+     * {@link Boolean}
+     * True if the file can be written
+     */
+    private Boolean canWrite;
+
+    /**
+     * Constructor
+     * 
+     * @param relativePath {@link String} Relative path of the file
+     * @param verId        {@link UUID} Version ID of the file
+     * @param size         Size of the file
+     * @param canRead      {@link Boolean} True if the file can be read
+     * @param canWrite     {@link Boolean} True if the file can be written
+     */
+    public CacheIndexEntry(String relativePath, UUID verId, long size, Boolean canRead, Boolean canWrite) {
+        this.relativePath = relativePath;
+        this.verId = verId;
+        this.size = size;
+        this.canRead = canRead;
+        this.canWrite = canWrite;
+    }
+
+    public String getRelativePath() {
+        return relativePath;
+    }
+
+    public UUID getVerId() {
+        return verId;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public Boolean getCanRead() {
+        return canRead;
+    }
+
+    public Boolean getCanWrite() {
+        return canWrite;
+    }
+}
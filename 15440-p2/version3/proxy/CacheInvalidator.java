@@ -0,0 +1,39 @@
+
+/**
+ * CacheInvalidator.java
+ * 
+ * @author Cundao Yu <cundaoy@andrew.cmu.edu>
+ */
+
+/**
+ * Callback of the proxy registered to the server
+ * 
+ * The server calls it before a file leased by this proxy is updated or
+ * removed, it marks the cached file stale so the next open checks the server.
+ */
+public class CacheInvalidator implements InvalidationListener {
+    /**
+     * {@link Cache}
+     * The cache to invalidate
+     */
+    private Cache cache;
+
+    /**
+     * Constructor
+     * 
+     * @param cache {@link Cache} The cache to invalidate
+     */
+    public CacheInvalidator(Cache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Invalidate the cached version of a file
+     * 
+     * @param relativePath {@link String} Relative path of the file
+     */
+    @Override
+    public void invalidate(String relativePath) {
+        cache.invalidate(relativePath);
+    }
+}
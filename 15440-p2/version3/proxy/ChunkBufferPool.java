@@ -0,0 +1,52 @@
+
+/**
+ * ChunkBufferPool.java
+ * 
+ * @author Cundao Yu <cundaoy@andrew.cmu.edu>
+ */
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Pool of chunk buffers
+ * 
+ * Buffers are CHUNK_SIZE long, they are reused for data transfer by chunks
+ * instead of allocating a new buffer for every chunk.
+ */
+public class ChunkBufferPool {
+    /**
+     * {@link ArrayBlockingQueue}<{@link byte[]}>
+     * Free buffers
+     */
+    private ArrayBlockingQueue<byte[]> freeBuffers;
+
+    /**
+     * Constructor
+     * 
+     * @param capacity Max number of free buffers kept in the pool
+     */
+    public ChunkBufferPool(int capacity) {
+        this.freeBuffers = new ArrayBlockingQueue<byte[]>(capacity);
+    }
+
+    /**
+     * Get a buffer from the pool, allocate a new one if the pool is empty
+     * 
+     * @return {@link byte[]} A buffer of CHUNK_SIZE
+     */
+    public byte[] acquire() {
+        byte[] buffer = freeBuffers.poll();
+        if (buffer == null) {
+            buffer = new byte[Server.CHUNK_SIZE];
+        }
+        return buffer;
+    }
+
+    /**
+     * Return a buffer to the pool, drop it if the pool is full
+     * 
+     * @param buffer {@link byte[]} The buffer acquired from this pool
+     */
+    public void release(byte[] buffer) {
+        freeBuffers.offer(buffer);
+    }
+}
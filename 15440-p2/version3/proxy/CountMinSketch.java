@@ -0,0 +1,121 @@
+
+/**
+ * CountMinSketch.java
+ * 
+ * @author Cundao Yu <cundaoy@andrew.cmu.edu>
+ */
+
+/**
+ * Count-min sketch to estimate access frequency of paths
+ * 
+ * Each path is counted in one counter of every row, the estimate is the
+ * minimum of them. Counters are capped at MAX_COUNT, and all counters are
+ * halved after every sampleSize increments, so old popularity fades out.
+ * It takes fixed memory no matter how many paths are seen, including paths
+ * not in the cache anymore.
+ */
+public class CountMinSketch {
+    /**
+     * Number of rows
+     */
+    private static final int DEPTH = 4;
+    /**
+     * Max value of a counter
+     */
+    private static final int MAX_COUNT = 15;
+    /**
+     * Seeds of the hash of each row
+     */
+    private static final int[] SEEDS = { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F };
+
+    /**
+     * {@link byte[][]}
+     * Counters, DEPTH rows of width counters
+     */
+    private byte[][] counters;
+    /**
+     * Width of a row minus 1, width is a power of 2
+     */
+    private int mask;
+    /**
+     * Number of increments before halving all counters
+     */
+    private int sampleSize;
+    /**
+     * Number of increments since the last halving
+     */
+    private int additions;
+
+    /**
+     * Constructor
+     * 
+     * @param width Min number of counters in a row, rounded up to a power of 2
+     */
+    public CountMinSketch(int width) {
+        int size = Integer.highestOneBit(Math.max(16, width - 1)) << 1;
+        this.counters = new byte[DEPTH][size];
+        this.mask = size - 1;
+        this.sampleSize = 10 * size;
+        this.additions = 0;
+    }
+
+    /**
+     * Count an access of a path
+     * 
+     * @param path {@link String} The path accessed
+     */
+    public void increment(String path) {
+        int hash = path.hashCode();
+        Boolean added = false;
+        for (int row = 0; row < DEPTH; row++) {
+            int index = indexOf(hash, row);
+            if (counters[row][index] < MAX_COUNT) {
+                counters[row][index]++;
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * Estimate the access frequency of a path
+     * 
+     * @param path {@link String} The path
+     * @return Estimated frequency
+     */
+    public int frequency(String path) {
+        int hash = path.hashCode();
+        int frequency = MAX_COUNT;
+        for (int row = 0; row < DEPTH; row++) {
+            frequency = Math.min(frequency, counters[row][indexOf(hash, row)]);
+        }
+        return frequency;
+    }
+
+    /**
+     * Halve all counters
+     */
+    private void reset() {
+        for (byte[] row : counters) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] = (byte) (row[i] >> 1);
+            }
+        }
+        additions /= 2;
+    }
+
+    /**
+     * Get the index of the counter of a hash in a row
+     * 
+     * @param hash Hash of the path
+     * @param row  Row
+     * @return Index in the row
+     */
+    private int indexOf(int hash, int row) {
+        int h = (hash ^ SEEDS[row]) * 0x9E3779B1;
+        h ^= h >>> 16;
+        return h & mask;
+    }
+}
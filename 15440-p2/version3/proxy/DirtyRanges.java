@@ -0,0 +1,86 @@
+
+/**
+ * DirtyRanges.java
+ * 
+ * @author Cundao Yu <cundaoy@andrew.cmu.edu>
+ */
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Set of byte ranges written to a write copy
+ * 
+ * Ranges are kept sorted by start and disjoint, a new range is merged with the
+ * ranges it overlaps or touches, so a sequential write of a whole file is one
+ * range no matter how many writes it takes.
+ */
+public class DirtyRanges {
+    /**
+     * {@link TreeMap}<{@link Long}, {@link Long}>
+     * Start of each range to its end, exclusive
+     */
+    private TreeMap<Long, Long> ranges;
+
+    /**
+     * Constructor
+     */
+    public DirtyRanges() {
+        this.ranges = new TreeMap<Long, Long>();
+    }
+
+    /**
+     * Add a range, merge it with the ranges it overlaps or touches
+     * 
+     * @param offset Offset of the range
+     * @param length Length of the range
+     */
+    public synchronized void add(long offset, long length) {
+        if (length <= 0) {
+            return;
+        }
+        long start = offset;
+        long end = offset + length;
+
+        /* Merge with the range starting before it if they overlap or touch */
+        Map.Entry<Long, Long> floor = ranges.floorEntry(start);
+        if (floor != null && floor.getValue() >= start) {
+            if (floor.getValue() >= end) {
+                return; // already dirty
+            }
+            start = floor.getKey();
+            end = Math.max(end, floor.getValue());
+            ranges.remove(floor.getKey());
+        }
+
+        /* Merge with the ranges starting inside it */
+        Map.Entry<Long, Long> next = ranges.ceilingEntry(start);
+        while (next != null && next.getKey() <= end) {
+            end = Math.max(end, next.getValue());
+            ranges.remove(next.getKey());
+            next = ranges.ceilingEntry(start);
+        }
+
+        ranges.put(start, end);
+    }
+
+    /**
+     * Get the ranges, clipped to a size
+     * 
+     * @param limit Size of the file, ranges beyond it are dropped
+     * @return {@link List}<{@link long[]}> Offset and length of each range, by
+     *         offset
+     */
+    public synchronized List<long[]> getRanges(long limit) {
+        List<long[]> result = new ArrayList<long[]>();
+        for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+            if (range.getKey() >= limit) {
+                break;
+            }
+            long end = Math.min(range.getValue(), limit);
+            result.add(new long[] { range.getKey(), end - range.getKey() });
+        }
+        return result;
+    }
+}
@@ -0,0 +1,55 @@
+
+/**
+ * DiskStorage.java
+ * 
+ * @author Cundao Yu <cundaoy@andrew.cmu.edu>
+ */
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Content of a file version in a file of the cache directory
+ */
+public class DiskStorage implements VersionStorage {
+    /**
+     * {@link FileChannel}
+     * Channel of the file
+     */
+    private FileChannel channel;
+
+    /**
+     * Constructor
+     * 
+     * @param channel {@link FileChannel} Channel of the file, closed with the
+     *                storage
+     */
+    public DiskStorage(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    public int read(ByteBuffer dst, long position) throws IOException {
+        return channel.read(dst, position);
+    }
+
+    public int write(ByteBuffer src, long position) throws IOException {
+        return channel.write(src, position);
+    }
+
+    public long transferTo(long position, long count, FileChannel target) throws IOException {
+        return channel.transferTo(position, count, target); // Copied by the kernel
+    }
+
+    public MappedByteBuffer map(long size) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    }
+
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
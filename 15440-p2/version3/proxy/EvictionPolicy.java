@@ -0,0 +1,61 @@
+
+/**
+ * EvictionPolicy.java
+ * 
+ * @author Cundao Yu <cundaoy@andrew.cmu.edu>
+ */
+import java.util.function.Predicate;
+
+/**
+ * Eviction policy of the cache
+ * 
+ * The cache tells the policy which files are inserted, accessed and removed,
+ * and asks it for a victim when it needs space.
+ * All methods are called with the table lock of the cache held, so
+ * implementations don't need to be thread safe.
+ */
+public interface EvictionPolicy {
+    /**
+     * A file is inserted to the cache
+     * 
+     * @param file {@link CacheFile} The file inserted
+     */
+    void onInsert(CacheFile file);
+
+    /**
+     * A file in the cache is accessed, or updated to a new version
+     * 
+     * @param file {@link CacheFile} The file accessed
+     */
+    void onAccess(CacheFile file);
+
+    /**
+     * A file is removed from the cache, not by eviction
+     * 
+     * @param file {@link CacheFile} The file removed
+     */
+    void onRemove(CacheFile file);
+
+    /**
+     * A file selected by {@link #selectVictim} is evicted from the cache
+     * 
+     * @param file {@link CacheFile} The file evicted
+     */
+    void onEvict(CacheFile file);
+
+    /**
+     * Select the file to evict next
+     * 
+     * @param evictable {@link Predicate}<{@link CacheFile}> True if a file can be
+     *                  evicted now
+     * @return {@link CacheFile} The file to evict, null if no file can be evicted
+     */
+    CacheFile selectVictim(Predicate<CacheFile> evictable);
+
+    /**
+     * Get the status of the policy for logging
+     * 
+     * @return {@link String} The status of the policy
+     */
+    String getStatus();
+}
@@ -5,10 +5,14 @@
  * @author Cundao Yu <cundaoy@andrew.cmu.edu>
  */
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 
 /**
  * File descriptor table
+ * 
+ * Used descriptors are kept in a bitset, so the lowest free one is found by a
+ * word scan instead of looking at every open file.
  */
 public class FDTable {
     /**
@@ -21,12 +25,18 @@ public class FDTable {
      * Open files table, index is the file descriptor
      */
     private List<OpenFile> openFiles;
+    /**
+     * {@link BitSet}
+     * Used file descriptors
+     */
+    private BitSet usedFds;
 
     /**
      * Constructor
      */
     public FDTable() {
         openFiles = new ArrayList<OpenFile>();
+        usedFds = new BitSet();
     }
 
     /**
@@ -53,18 +63,15 @@ public class FDTable {
      * @return File descriptor
      */
     public int getFreeFd() {
-        for (int i = 0; i < openFiles.size(); i++) {
-            if (openFiles.get(i) == null) {
-                return i;
-            }
+        int fd = usedFds.nextClearBit(0); // Lowest free descriptor
+        if (fd >= MAX_SIZE) {
+            return -1;
         }
 
-        if (openFiles.size() < MAX_SIZE) {
+        while (openFiles.size() <= fd) {
             openFiles.add(null);
-            return openFiles.size() - 1;
         }
-
-        return -1;
+        return fd;
     }
 
     /**
@@ -75,6 +82,7 @@ public class FDTable {
      */
     public void addOpenFile(int fd, OpenFile file) {
         openFiles.set(fd, file);
+        usedFds.set(fd);
     }
 
     /**
@@ -96,5 +104,6 @@ public class FDTable {
      */
     public void removeOpenFile(int fd) {
         openFiles.set(fd, null);
+        usedFds.clear(fd);
     }
 }
@@ -0,0 +1,123 @@
+
+/**
+ * GdsfPolicy.java
+ * 
+ * @author Cundao Yu <cundaoy@andrew.cmu.edu>
+ */
+import java.util.HashMap;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+
+/**
+ * Greedy-Dual-Size-Frequency eviction policy
+ * 
+ * Each file has a priority of inflation + frequency / size, the file with the
+ * lowest priority is evicted. Small files used often are kept over large files
+ * used once. The inflation rises to the priority of each victim, so files not
+ * used for a long time age out.
+ */
+public class GdsfPolicy implements EvictionPolicy {
+    /**
+     * {@link HashMap}<{@link CacheFile}, {@link double[]}>
+     * Priority, frequency and last access tick of each file
+     */
+    private HashMap<CacheFile, double[]> stats;
+    /**
+     * {@link TreeSet}<{@link CacheFile}>
+     * Files ordered by priority, then by last access tick
+     */
+    private TreeSet<CacheFile> order;
+    /**
+     * Inflation, priority of the last victim
+     */
+    private double inflation;
+    /**
+     * Logical clock of accesses
+     */
+    private long tick;
+
+    /**
+     * Constructor
+     */
+    public GdsfPolicy() {
+        this.stats = new HashMap<CacheFile, double[]>();
+        this.order = new TreeSet<CacheFile>((a, b) -> {
+            double[] statsA = stats.get(a);
+            double[] statsB = stats.get(b);
+            if (statsA[0] != statsB[0]) {
+                return Double.compare(statsA[0], statsB[0]);
+            }
+            return Double.compare(statsA[2], statsB[2]);
+        });
+        this.inflation = 0;
+        this.tick = 0;
+    }
+
+    @Override
+    public void onInsert(CacheFile file) {
+        double[] fileStats = new double[] { 0, 1, tick++ };
+        fileStats[0] = priorityOf(file, fileStats[1]);
+        stats.put(file, fileStats);
+        order.add(file);
+    }
+
+    @Override
+    public void onAccess(CacheFile file) {
+        double[] fileStats = stats.get(file);
+        if (fileStats == null) {
+            return;
+        }
+        order.remove(file); // Remove before the order key changes
+        fileStats[1]++;
+        fileStats[0] = priorityOf(file, fileStats[1]);
+        fileStats[2] = tick++;
+        order.add(file);
+    }
+
+    @Override
+    public void onRemove(CacheFile file) {
+        if (stats.containsKey(file)) {
+            order.remove(file);
+            stats.remove(file);
+        }
+    }
+
+    @Override
+    public void onEvict(CacheFile file) {
+        double[] fileStats = stats.get(file);
+        if (fileStats != null) {
+            inflation = Math.max(inflation, fileStats[0]);
+        }
+        onRemove(file);
+    }
+
+    @Override
+    public CacheFile selectVictim(Predicate<CacheFile> evictable) {
+        for (CacheFile file : order) {
+            if (evictable.test(file)) {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String getStatus() {
+        String status = "GDSF status: inflation " + inflation + " ";
+        for (CacheFile file : order) {
+            status += file.getRelativePath() + " ";
+        }
+        return status;
+    }
+
+    /**
+     * Compute the priority of a file
+     * 
+     * @param file      {@link CacheFile} The file
+     * @param frequency Access count of the file
+     * @return Priority of the file
+     */
+    private double priorityOf(CacheFile file, double frequency) {
+        return inflation + frequency / Math.max(1, file.getNewestSize());
+    }
+}
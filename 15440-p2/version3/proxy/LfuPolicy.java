@@ -0,0 +1,98 @@
+
+/**
+ * LfuPolicy.java
+ * 
+ * @author Cundao Yu <cundaoy@andrew.cmu.edu>
+ */
+import java.util.HashMap;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+
+/**
+ * Least frequently used eviction policy
+ * 
+ * Files are ordered by access count, files with the same count are ordered by
+ * the last access time, so the least recently used one is evicted first.
+ */
+public class LfuPolicy implements EvictionPolicy {
+    /**
+     * {@link HashMap}<{@link CacheFile}, {@link long[]}>
+     * Access count and last access tick of each file
+     */
+    private HashMap<CacheFile, long[]> stats;
+    /**
+     * {@link TreeSet}<{@link CacheFile}>
+     * Files ordered by access count, then by last access tick
+     */
+    private TreeSet<CacheFile> order;
+    /**
+     * Logical clock of accesses
+     */
+    private long tick;
+
+    /**
+     * Constructor
+     */
+    public LfuPolicy() {
+        this.stats = new HashMap<CacheFile, long[]>();
+        this.order = new TreeSet<CacheFile>((a, b) -> {
+            long[] statsA = stats.get(a);
+            long[] statsB = stats.get(b);
+            if (statsA[0] != statsB[0]) {
+                return Long.compare(statsA[0], statsB[0]);
+            }
+            return Long.compare(statsA[1], statsB[1]);
+        });
+        this.tick = 0;
+    }
+
+    @Override
+    public void onInsert(CacheFile file) {
+        stats.put(file, new long[] { 1, tick++ });
+        order.add(file);
+    }
+
+    @Override
+    public void onAccess(CacheFile file) {
+        long[] fileStats = stats.get(file);
+        if (fileStats == null) {
+            return;
+        }
+        order.remove(file); // Remove before the order key changes
+        fileStats[0]++;
+        fileStats[1] = tick++;
+        order.add(file);
+    }
+
+    @Override
+    public void onRemove(CacheFile file) {
+        if (stats.containsKey(file)) {
+            order.remove(file);
+            stats.remove(file);
+        }
+    }
+
+    @Override
+    public void onEvict(CacheFile file) {
+        onRemove(file);
+    }
+
+    @Override
+    public CacheFile selectVictim(Predicate<CacheFile> evictable) {
+        for (CacheFile file : order) {
+            if (evictable.test(file)) {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String getStatus() {
+        String status = "LFU status: ";
+        for (CacheFile file : order) {
+            status += file.getRelativePath() + "(" + stats.get(file)[0] + ") ";
+        }
+        return status;
+    }
+}
@@ -0,0 +1,120 @@
+
+/**
+ * LruPolicy.java
+ * 
+ * @author Cundao Yu <cundaoy@andrew.cmu.edu>
+ */
+import java.util.function.Predicate;
+
+/**
+ * Least recently used eviction policy
+ * 
+ * It stores the head of LRU list(a doubly-linked list of CacheFile
+ * {@link CacheFile} objects) as mostRecentUsed and the tail as
+ * leastRecentUsed.
+ */
+public class LruPolicy implements EvictionPolicy {
+    /**
+     * {@link CacheFile}
+     * The head of LRU list, the most recently used file
+     */
+    private CacheFile mostRecentUsed;
+    /**
+     * {@link CacheFile}
+     * The tail of LRU list, the least recently used file
+     */
+    private CacheFile leastRecentUsed;
+
+    /**
+     * Constructor
+     */
+    public LruPolicy() {
+        this.mostRecentUsed = null;
+        this.leastRecentUsed = null;
+    }
+
+    @Override
+    public void onInsert(CacheFile file) {
+        insertToLRU(file);
+    }
+
+    @Override
+    public void onAccess(CacheFile file) {
+        removeFromLRU(file);
+        insertToLRU(file);
+    }
+
+    @Override
+    public void onRemove(CacheFile file) {
+        removeFromLRU(file);
+    }
+
+    @Override
+    public void onEvict(CacheFile file) {
+        removeFromLRU(file);
+    }
+
+    @Override
+    public CacheFile selectVictim(Predicate<CacheFile> evictable) {
+        /* Traverse the LRU list from the least recently used */
+        for (CacheFile file = leastRecentUsed; file != null; file = file.getPrev()) {
+            if (evictable.test(file)) {
+                return file;
+            }
+            Logger.log("File is in use, skip");
+        }
+        return null;
+    }
+
+    /**
+     * Get the status of LRU list
+     * 
+     * @return {@link String} The file sequence in LRU list
+     */
+    @Override
+    public String getStatus() {
+        String status = "LRU status: ";
+        CacheFile file = mostRecentUsed;
+        while (file != null) {
+            status += file.getRelativePath() + " ";
+            file = file.getNext();
+        }
+        return status;
+    }
+
+    /**
+     * insert a new file to LRU
+     * 
+     * @param file {@link CacheFile} The file to insert
+     */
+    private void insertToLRU(CacheFile file) {
+        if (mostRecentUsed == null) {
+            mostRecentUsed = file;
+            leastRecentUsed = file;
+        } else {
+            file.setNext(mostRecentUsed);
+            mostRecentUsed.setPrev(file);
+            mostRecentUsed = file;
+        }
+    }
+
+    /**
+     * remove a file from LRU
+     * 
+     * @param file {@link CacheFile} The file to remove
+     */
+    private void removeFromLRU(CacheFile file) {
+        if (file.getPrev() != null) {
+            file.getPrev().setNext(file.getNext());
+        } else {
+            mostRecentUsed = file.getNext();
+        }
+        if (file.getNext() != null) {
+            file.getNext().setPrev(file.getPrev());
+        } else {
+            leastRecentUsed = file.getPrev();
+        }
+        file.setNext(null);
+        file.setPrev(null);
+    }
+}
@@ -0,0 +1,74 @@
+
+/**
+ * MemoryStorage.java
+ * 
+ * @author Cundao Yu <cundaoy@andrew.cmu.edu>
+ */
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Content of a file version in a slice of the {@link MemoryTier}
+ * 
+ * The slice is only accessed by absolute gets and puts, so the storage can be
+ * shared by open files without locking.
+ */
+public class MemoryStorage implements VersionStorage {
+    /**
+     * {@link ByteBuffer}
+     * Slice of the arena holding the content, at least size long
+     */
+    private ByteBuffer slice;
+    /**
+     * Size of the content
+     */
+    private long size;
+
+    /**
+     * Constructor
+     * 
+     * @param slice {@link ByteBuffer} Slice of the arena holding the content
+     * @param size  Size of the content
+     */
+    public MemoryStorage(ByteBuffer slice, long size) {
+        this.slice = slice;
+        this.size = size;
+    }
+
+    public int read(ByteBuffer dst, long position) throws IOException {
+        if (position >= size) {
+            return -1;
+        }
+        int readSize = (int) Math.min(dst.remaining(), size - position);
+        dst.put(slice.slice((int) position, readSize));
+        return readSize;
+    }
+
+    public int write(ByteBuffer src, long position) throws IOException {
+        int writeSize = src.remaining();
+        if (position + writeSize > slice.capacity()) {
+            throw new IOException("Write beyond the memory slice");
+        }
+        slice.put((int) position, src, src.position(), writeSize);
+        src.position(src.limit());
+        return writeSize;
+    }
+
+    public long transferTo(long position, long count, FileChannel target) throws IOException {
+        if (position >= size) {
+            return 0;
+        }
+        int copySize = (int) Math.min(count, size - position);
+        return target.write(slice.slice((int) position, copySize));
+    }
+
+    public MappedByteBuffer map(long size) throws IOException {
+        return null; // Already in memory
+    }
+
+    public void close() {
+        // The slice belongs to the version until it's freed to the tier
+    }
+}
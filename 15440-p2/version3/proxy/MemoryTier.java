@@ -0,0 +1,185 @@
+
+/**
+ * MemoryTier.java
+ * 
+ * @author Cundao Yu <cundaoy@andrew.cmu.edu>
+ */
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * In-memory tier of the cache for small file versions
+ * 
+ * The tier is one direct ByteBuffer arena with its own byte budget, carved
+ * into slices by size classes of powers of two from MIN_SLICE_SIZE up to the
+ * threshold. A freed slice goes back to the free list of its class. When a
+ * class has no free slice and the arena is used up, the least recently used
+ * version of the class not in use is demoted to disk to free one.
+ * Space of versions in the tier is still counted in the cache size, the
+ * budget only bounds the memory used.
+ */
+public class MemoryTier {
+    /**
+     * Size of the smallest slice
+     */
+    private static final int MIN_SLICE_SIZE = 512;
+
+    /**
+     * Max bytes of the arena
+     */
+    private int budget;
+    /**
+     * Max size of a version in the tier
+     */
+    private int threshold;
+    /**
+     * {@link ByteBuffer}
+     * The arena, allocated on the first slice
+     */
+    private ByteBuffer arena;
+    /**
+     * Offset of the part of the arena not carved yet
+     */
+    private int carved;
+    /**
+     * {@link List}<{@link ArrayDeque}<{@link ByteBuffer}>>
+     * Free slices of each size class
+     */
+    private List<ArrayDeque<ByteBuffer>> freeSlices;
+    /**
+     * {@link List}<{@link LinkedHashSet}<{@link CacheFileVersion}>>
+     * Versions holding a slice of each size class, from the least recently used
+     */
+    private List<LinkedHashSet<CacheFileVersion>> residents;
+
+    /**
+     * Constructor
+     * 
+     * @param budget    Max bytes of the arena, 0 to disable the tier
+     * @param threshold Max size of a version in the tier
+     */
+    public MemoryTier(long budget, int threshold) {
+        this.budget = (int) Math.min(budget, Integer.MAX_VALUE);
+        this.threshold = Math.min(threshold, this.budget);
+        this.arena = null;
+        this.carved = 0;
+        this.freeSlices = new ArrayList<ArrayDeque<ByteBuffer>>();
+        this.residents = new ArrayList<LinkedHashSet<CacheFileVersion>>();
+        for (int classSize = MIN_SLICE_SIZE; classSize / 2 < this.threshold; classSize *= 2) {
+            freeSlices.add(new ArrayDeque<ByteBuffer>());
+            residents.add(new LinkedHashSet<CacheFileVersion>());
+        }
+    }
+
+    /**
+     * Check if a version of a size is kept in the tier
+     * 
+     * @param size Size of the version
+     * @return {@link Boolean} True if the version should be kept in memory
+     */
+    public Boolean accepts(long size) {
+        return budget > 0 && size <= threshold;
+    }
+
+    /**
+     * Allocate a slice, demote a version of the same size class to disk if
+     * needed
+     * 
+     * The slice is not demoted before it's admitted by {@link #admit}.
+     * 
+     * @param size Size of the content
+     * @return {@link ByteBuffer} The slice, null if there's no slice free
+     */
+    public ByteBuffer allocate(long size) {
+        int sizeClass = classOf(size);
+        List<CacheFileVersion> victims = null;
+        synchronized (this) {
+            ByteBuffer slice = take(sizeClass);
+            if (slice != null) {
+                return slice;
+            }
+            victims = new ArrayList<CacheFileVersion>(residents.get(sizeClass));
+        }
+
+        /* Demote without the tier locked, demoting frees the slice of the victim */
+        for (CacheFileVersion victim : victims) {
+            if (victim.demote()) {
+                break;
+            }
+        }
+        synchronized (this) {
+            return take(sizeClass);
+        }
+    }
+
+    /**
+     * Admit a version holding a filled slice, it may be demoted from now on
+     * 
+     * @param version {@link CacheFileVersion} The version holding the slice
+     * @param slice   {@link ByteBuffer} Slice of the version
+     */
+    public synchronized void admit(CacheFileVersion version, ByteBuffer slice) {
+        residents.get(classOf(slice.capacity())).add(version);
+    }
+
+    /**
+     * Mark a version as recently used
+     * 
+     * @param version {@link CacheFileVersion} The version holding a slice
+     * @param slice   {@link ByteBuffer} Slice of the version
+     */
+    public synchronized void touch(CacheFileVersion version, ByteBuffer slice) {
+        LinkedHashSet<CacheFileVersion> classResidents = residents.get(classOf(slice.capacity()));
+        if (classResidents.remove(version)) {
+            classResidents.add(version);
+        }
+    }
+
+    /**
+     * Free the slice of a version
+     * 
+     * @param version {@link CacheFileVersion} The version holding the slice
+     * @param slice   {@link ByteBuffer} Slice of the version
+     */
+    public synchronized void free(CacheFileVersion version, ByteBuffer slice) {
+        int sizeClass = classOf(slice.capacity());
+        residents.get(sizeClass).remove(version);
+        freeSlices.get(sizeClass).add(slice);
+    }
+
+    /**
+     * Take a free slice of a size class, or carve one from the arena
+     * 
+     * @param sizeClass Size class of the slice
+     * @return {@link ByteBuffer} The slice, null if there's none
+     */
+    private ByteBuffer take(int sizeClass) {
+        ByteBuffer slice = freeSlices.get(sizeClass).poll();
+        int classSize = MIN_SLICE_SIZE << sizeClass;
+        if (slice == null && carved + classSize <= budget) {
+            if (arena == null) {
+                arena = ByteBuffer.allocateDirect(budget);
+            }
+            slice = arena.slice(carved, classSize);
+            carved += classSize;
+        }
+        return slice;
+    }
+
+    /**
+     * Get the size class of a size
+     * 
+     * @param size The size
+     * @return Index of the smallest size class holding the size
+     */
+    private static int classOf(long size) {
+        int sizeClass = 0;
+        while ((long) MIN_SLICE_SIZE << sizeClass < size) {
+            sizeClass++;
+        }
+        return sizeClass;
+    }
+}
@@ -0,0 +1,366 @@
+
+/**
+ * NioServerStub.java
+ * 
+ * @author Cundao Yu <cundaoy@andrew.cmu.edu>
+ */
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Proxy side of the NIO transport
+ * 
+ * It implements {@link ServerOperations} by sending request frames of
+ * {@link NioProtocol} on one connection. Callers from many threads share the
+ * connection, a reader thread hands each response to the caller waiting for
+ * its request ID.
+ * INVALIDATE frames from the server are applied by the reader thread to the
+ * registered {@link InvalidationListener} and acknowledged right away.
+ */
+public class NioServerStub implements ServerOperations {
+    /**
+     * {@link SocketChannel}
+     * Connection to the server
+     */
+    private SocketChannel channel;
+    /**
+     * {@link ReentrantLock}
+     * The lock to write a whole frame at a time
+     */
+    private ReentrantLock writeLock;
+    /**
+     * {@link AtomicLong}
+     * Next request ID
+     */
+    private AtomicLong nextRequestId;
+    /**
+     * {@link ConcurrentHashMap}<{@link Long}, {@link CompletableFuture}>
+     * Requests waiting for response, by request ID
+     */
+    private ConcurrentHashMap<Long, CompletableFuture<ByteBuffer>> pendingRequests;
+    /**
+     * {@link IOException}
+     * The error that closed the connection, null if the connection is open
+     */
+    private volatile IOException closedBy;
+    /**
+     * {@link InvalidationListener}
+     * Callback registered by registerProxy, null if not registered
+     */
+    private volatile InvalidationListener listener;
+
+    /**
+     * Constructor, connect to the server
+     * 
+     * @param host {@link String} Host of the server
+     * @param port NIO port of the server
+     * @throws IOException
+     */
+    public NioServerStub(String host, int port) throws IOException {
+        this.channel = SocketChannel.open(new InetSocketAddress(host, port));
+        this.channel.socket().setTcpNoDelay(true);
+        this.writeLock = new ReentrantLock();
+        this.nextRequestId = new AtomicLong(1);
+        this.pendingRequests = new ConcurrentHashMap<Long, CompletableFuture<ByteBuffer>>();
+        this.closedBy = null;
+        this.listener = null;
+        Thread readThread = new Thread(() -> readResponses(), "nio-reader");
+        readThread.setDaemon(true);
+        readThread.start();
+    }
+
+    /**
+     * Read responses and complete the waiting requests until the connection is
+     * closed
+     */
+    private void readResponses() {
+        ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+        try {
+            while (true) {
+                ByteBuffer response = NioProtocol.readFrame(channel, lengthBuffer);
+                if (response.get(8) == NioProtocol.INVALIDATE) {
+                    handleInvalidation(response);
+                    continue;
+                }
+                CompletableFuture<ByteBuffer> request = pendingRequests.remove(response.getLong());
+                if (request != null) {
+                    request.complete(response);
+                }
+            }
+        } catch (IOException e) {
+            Logger.log("Connection to server closed: " + e);
+            closedBy = e;
+            for (CompletableFuture<ByteBuffer> request : pendingRequests.values()) {
+                request.completeExceptionally(e);
+            }
+            pendingRequests.clear();
+        }
+    }
+
+    /**
+     * Apply an invalidation from the server and acknowledge it
+     * 
+     * @param frame {@link ByteBuffer} The INVALIDATE frame, positioned at the
+     *              request ID
+     * @throws IOException
+     */
+    private void handleInvalidation(ByteBuffer frame) throws IOException {
+        long requestId = frame.getLong();
+        frame.get(); // Skip code
+        String relativePath = NioProtocol.getString(frame);
+        if (listener != null) {
+            listener.invalidate(relativePath);
+        }
+        ByteBuffer ack = NioProtocol.newFrame(requestId, NioProtocol.INVALIDATE, 0);
+        ack.flip();
+        writeLock.lock();
+        try {
+            NioProtocol.writeFully(channel, ack);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Send a request and wait for its response
+     * 
+     * @param requestId Request ID
+     * @param request   {@link ByteBuffer} The request frame
+     * @return {@link ByteBuffer} The response payload
+     * @throws RemoteException
+     */
+    private ByteBuffer call(long requestId, ByteBuffer request) throws RemoteException {
+        CompletableFuture<ByteBuffer> future = new CompletableFuture<ByteBuffer>();
+        pendingRequests.put(requestId, future);
+        if (closedBy != null) {
+            pendingRequests.remove(requestId);
+            throw new RemoteException("Connection to server closed", closedBy);
+        }
+
+        request.flip();
+        writeLock.lock();
+        try {
+            NioProtocol.writeFully(channel, request);
+        } catch (IOException e) {
+            pendingRequests.remove(requestId);
+            throw new RemoteException("Failed to send request", e);
+        } finally {
+            writeLock.unlock();
+        }
+
+        ByteBuffer response = null;
+        try {
+            response = future.get();
+        } catch (InterruptedException | ExecutionException e) {
+            pendingRequests.remove(requestId);
+            throw new RemoteException("Failed to get response", e);
+        }
+        if (response.get() == NioProtocol.ERROR) {
+            throw new RemoteException(NioProtocol.getString(response));
+        }
+        return response;
+    }
+
+    /**
+     * Check file on the server
+     * 
+     * @param reqPathStr {@link String} Requested path
+     * @param proxyVerId {@link UUID} Version ID of the proxy
+     * @param proxyId    ID of the proxy from registerProxy, -1 if not registered
+     * @return {@link FileCheckResult} Result of the file check
+     * @throws RemoteException
+     */
+    @Override
+    public FileCheckResult checkFile(String reqPathStr, UUID proxyVerId, int proxyId) throws RemoteException {
+        long requestId = nextRequestId.getAndIncrement();
+        byte[] path = NioProtocol.encodeString(reqPathStr);
+        ByteBuffer request = NioProtocol.newFrame(requestId, NioProtocol.CHECK_FILE,
+                NioProtocol.sizeOf(path) + NioProtocol.UUID_SIZE + 4);
+        NioProtocol.putBytes(request, path);
+        NioProtocol.putUUID(request, proxyVerId);
+        request.putInt(proxyId);
+        return NioProtocol.decodeCheckResult(call(requestId, request));
+    }
+
+    /**
+     * Check files on the server in one call, the first path like checkFile
+     * 
+     * @param reqPathStrs {@link String[]} Requested paths
+     * @param proxyVerIds {@link UUID[]} Version IDs of the files on the proxy
+     * @param proxyId     ID of the proxy from registerProxy, -1 if not registered
+     * @return {@link FileCheckResult[]} Results of the file checks
+     * @throws RemoteException
+     */
+    @Override
+    public FileCheckResult[] checkFiles(String[] reqPathStrs, UUID[] proxyVerIds, int proxyId)
+            throws RemoteException {
+        long requestId = nextRequestId.getAndIncrement();
+        byte[][] paths = new byte[reqPathStrs.length][];
+        int payloadSize = 4 + 4;
+        for (int i = 0; i < reqPathStrs.length; i++) {
+            paths[i] = NioProtocol.encodeString(reqPathStrs[i]);
+            payloadSize += NioProtocol.sizeOf(paths[i]) + NioProtocol.UUID_SIZE;
+        }
+        ByteBuffer request = NioProtocol.newFrame(requestId, NioProtocol.CHECK_FILES, payloadSize);
+        request.putInt(reqPathStrs.length);
+        for (int i = 0; i < reqPathStrs.length; i++) {
+            NioProtocol.putBytes(request, paths[i]);
+            NioProtocol.putUUID(request, proxyVerIds[i]);
+        }
+        request.putInt(proxyId);
+        return NioProtocol.decodeCheckResults(call(requestId, request));
+    }
+
+    /**
+     * Register this proxy to be invalidated by INVALIDATE frames on this
+     * connection
+     * 
+     * @param listener {@link InvalidationListener} Callback of the proxy, called
+     *                 by the reader thread
+     * @return ID of the proxy
+     * @throws RemoteException
+     */
+    @Override
+    public int registerProxy(InvalidationListener listener) throws RemoteException {
+        this.listener = listener;
+        long requestId = nextRequestId.getAndIncrement();
+        ByteBuffer request = NioProtocol.newFrame(requestId, NioProtocol.REGISTER_PROXY, 0);
+        return call(requestId, request).getInt();
+    }
+
+    /**
+     * Read a range of a temporary file on the server
+     * 
+     * @param serverFd File descriptor of the file in the server
+     * @param offset   Offset in the file to read from
+     * @param length   Max number of bytes to read
+     * @return Data read from the file
+     * @throws RemoteException
+     */
+    @Override
+    public byte[] readFile(int serverFd, long offset, int length) throws RemoteException {
+        long requestId = nextRequestId.getAndIncrement();
+        ByteBuffer request = NioProtocol.newFrame(requestId, NioProtocol.READ_FILE, 4 + 8 + 4);
+        request.putInt(serverFd);
+        request.putLong(offset);
+        request.putInt(length);
+        return NioProtocol.getBytes(call(requestId, request));
+    }
+
+    /**
+     * Request to put a file on the server
+     * 
+     * @param relativePath {@link String} Relative path
+     * @param verId        {@link UUID} Version ID
+     * @return File descriptor of the file on the server for later data transfer,
+     *         ENFILE if the server has too many open files
+     * @throws RemoteException
+     */
+    @Override
+    public int putFile(String relativePath, UUID verId) throws RemoteException {
+        long requestId = nextRequestId.getAndIncrement();
+        byte[] path = NioProtocol.encodeString(relativePath);
+        ByteBuffer request = NioProtocol.newFrame(requestId, NioProtocol.PUT_FILE,
+                NioProtocol.sizeOf(path) + NioProtocol.UUID_SIZE);
+        NioProtocol.putBytes(request, path);
+        NioProtocol.putUUID(request, verId);
+        return call(requestId, request).getInt();
+    }
+
+    /**
+     * Request to put a file on the server as changes to a base version
+     * 
+     * @param relativePath {@link String} Relative path
+     * @param verId        {@link UUID} Version ID
+     * @param baseVerId    {@link UUID} Version ID of the base version
+     * @param size         Size of the new version
+     * @return File descriptor of the file on the server for later data transfer,
+     *         -1 if the base version is not current on the server, ENFILE if
+     *         the server has too many open files
+     * @throws RemoteException
+     */
+    @Override
+    public int putFileDelta(String relativePath, UUID verId, UUID baseVerId, long size) throws RemoteException {
+        long requestId = nextRequestId.getAndIncrement();
+        byte[] path = NioProtocol.encodeString(relativePath);
+        ByteBuffer request = NioProtocol.newFrame(requestId, NioProtocol.PUT_FILE_DELTA,
+                NioProtocol.sizeOf(path) + 2 * NioProtocol.UUID_SIZE + 8);
+        NioProtocol.putBytes(request, path);
+        NioProtocol.putUUID(request, verId);
+        NioProtocol.putUUID(request, baseVerId);
+        request.putLong(size);
+        return call(requestId, request).getInt();
+    }
+
+    /**
+     * Write to a temporary file on the server at a given offset
+     * 
+     * @param serverFd File descriptor of the file in the server
+     * @param offset   Offset in the file to write to
+     * @param data     Data to write
+     * @throws RemoteException
+     */
+    @Override
+    public void writeFile(int serverFd, long offset, byte[] data) throws RemoteException {
+        long requestId = nextRequestId.getAndIncrement();
+        ByteBuffer request = NioProtocol.newFrame(requestId, NioProtocol.WRITE_FILE,
+                4 + 8 + NioProtocol.sizeOf(data));
+        request.putInt(serverFd);
+        request.putLong(offset);
+        NioProtocol.putBytes(request, data);
+        call(requestId, request);
+    }
+
+    /**
+     * Close a temporary file on the server
+     * 
+     * @param serverFd File descriptor of the file in the server
+     * @throws RemoteException
+     */
+    @Override
+    public void closeFile(int serverFd) throws RemoteException {
+        long requestId = nextRequestId.getAndIncrement();
+        ByteBuffer request = NioProtocol.newFrame(requestId, NioProtocol.CLOSE_FILE, 4);
+        request.putInt(serverFd);
+        call(requestId, request);
+    }
+
+    /**
+     * Abort a temporary file on the server without committing it
+     * 
+     * @param serverFd File descriptor of the file in the server
+     * @throws RemoteException
+     */
+    @Override
+    public void abortFile(int serverFd) throws RemoteException {
+        long requestId = nextRequestId.getAndIncrement();
+        ByteBuffer request = NioProtocol.newFrame(requestId, NioProtocol.ABORT_FILE, 4);
+        request.putInt(serverFd);
+        call(requestId, request);
+    }
+
+    /**
+     * Remove a file on the server
+     * 
+     * @param reqPathStr {@link String} Requested path
+     * @return {@link FileRemoveResult} Result of the file remove
+     * @throws RemoteException
+     */
+    @Override
+    public FileRemoveResult removeFile(String reqPathStr) throws RemoteException {
+        long requestId = nextRequestId.getAndIncrement();
+        byte[] path = NioProtocol.encodeString(reqPathStr);
+        ByteBuffer request = NioProtocol.newFrame(requestId, NioProtocol.REMOVE_FILE, NioProtocol.sizeOf(path));
+        NioProtocol.putBytes(request, path);
+        return NioProtocol.decodeRemoveResult(call(requestId, request));
+    }
+}
@@ -5,13 +5,19 @@
  * @author Cundao Yu <cundaoy@andrew.cmu.edu>
  */
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 
 /**
  * Open file class
  * 
  * Emulate the open file in Unix
- * RandomAccessFile is the core to operate file
+ * An open file only keeps its own position, the content is read and written at
+ * that position through the {@link VersionStorage} shared by all open files of
+ * the version, on disk or in memory.
+ * An open file of a bypass version has no storage, it reads from the server.
+ * An open file reading a mapped version has no storage either, it copies from
+ * the mapping shared by the version.
  */
 public class OpenFile {
     /**
@@ -32,10 +38,20 @@ public class OpenFile {
      */
     private CacheFileVersion fileVersion;
     /**
-     * {@link RandomAccessFile}
-     * Random access file
+     * {@link VersionStorage}
+     * Storage shared by the open files of the version, null for a bypass or
+     * mapped version
      */
-    private RandomAccessFile raf;
+    private VersionStorage storage;
+    /**
+     * {@link MappedByteBuffer}
+     * Mapping of the file version, null if not reading from a mapping
+     */
+    private MappedByteBuffer mapping;
+    /**
+     * Position in the file
+     */
+    private long position;
 
     /**
      * Constructor
@@ -43,14 +59,35 @@ public class OpenFile {
      * @param read    True if the file is readable
      * @param write   True if the file is writable
      * @param version {@link CacheFileVersion} Corresponding file version
-     * @param raf     {@link RandomAccessFile} Random access file
+     * @param storage {@link VersionStorage} Storage shared by the open files of
+     *                the version, released when closed
      */
-    public OpenFile(Boolean read, Boolean write, CacheFileVersion version, RandomAccessFile raf) {
+    public OpenFile(Boolean read, Boolean write, CacheFileVersion version, VersionStorage storage) {
         Logger.log("Open(" + version.getRelativePath() + ")");
         this.read = read;
         this.write = write;
         this.fileVersion = version;
-        this.raf = raf;
+        this.storage = storage;
+        this.mapping = null;
+        this.position = 0;
+        this.isDirectory = false;
+    }
+
+    /**
+     * Constructor for reading from a mapping
+     * 
+     * @param version {@link CacheFileVersion} Corresponding file version
+     * @param mapping {@link MappedByteBuffer} Read-only mapping of the file
+     *                version, shared with other open files
+     */
+    public OpenFile(CacheFileVersion version, MappedByteBuffer mapping) {
+        Logger.log("Open(" + version.getRelativePath() + ") mapped");
+        this.read = true;
+        this.write = false;
+        this.fileVersion = version;
+        this.storage = null;
+        this.mapping = mapping;
+        this.position = 0;
         this.isDirectory = false;
     }
 
@@ -64,7 +101,9 @@ public class OpenFile {
         this.write = false;
         this.isDirectory = isDirectory;
         this.fileVersion = null;
-        this.raf = null;
+        this.storage = null;
+        this.mapping = null;
+        this.position = 0;
     }
 
     /**
@@ -97,26 +136,69 @@ public class OpenFile {
     /**
      * Read from the file
      * 
+     * Blocks not in the cache yet are fetched from the server first.
+     * 
      * @param buf Buffer to store the read content
-     * @return Number of bytes read
+     * @return Number of bytes read, or a negative error code
      * @throws IOException
      */
     public long read(byte[] buf) throws IOException {
-        return raf.read(buf);
+        if (mapping != null) {
+            if (position >= mapping.capacity()) {
+                return -1; // End of file
+            }
+            int readSize = (int) Math.min(buf.length, mapping.capacity() - position);
+            mapping.get((int) position, buf, 0, readSize); // Absolute get, the mapping is shared
+            position += readSize;
+            return readSize;
+        }
+        if (storage == null) {
+            // A regular file, fill the buffer by chunks until it's full or the file ends
+            int readSize = 0;
+            while (readSize < buf.length) {
+                byte[] data = fileVersion.readThrough(position, buf.length - readSize);
+                if (data == null) {
+                    return readSize > 0 ? readSize : ResCode.EIO;
+                }
+                if (data.length == 0) {
+                    break; // End of file
+                }
+                System.arraycopy(data, 0, buf, readSize, data.length);
+                position += data.length;
+                readSize += data.length;
+            }
+            return readSize > 0 ? readSize : -1;
+        }
+        if (!fileVersion.fetchBlocks(position, buf.length)) {
+            return ResCode.EIO;
+        }
+        int readSize = storage.read(ByteBuffer.wrap(buf), position); // Positional read, the storage is shared
+        if (readSize > 0) {
+            position += readSize;
+        }
+        return readSize;
     }
 
     /**
      * Write to the file
      * 
      * @param buf Buffer to write
+     * @return Number of bytes written, or a negative error code
      * @throws IOException
      */
-    public void write(byte[] buf) throws IOException {
+    public long write(byte[] buf) throws IOException {
         if (buf == null || buf.length == 0) {
-            return;
+            return 0;
+        }
+        if (!fileVersion.markWritten(position, buf.length)) { // Update the size and dirty ranges
+            return ResCode.ENOSPC;
         }
-        fileVersion.setSize(raf.getFilePointer() + buf.length); // Update the size of the file
-        raf.write(buf);
+        ByteBuffer data = ByteBuffer.wrap(buf);
+        while (data.hasRemaining()) {
+            storage.write(data, position + data.position());
+        }
+        position += buf.length;
+        return buf.length;
     }
 
     /**
@@ -126,7 +208,10 @@ public class OpenFile {
      * @throws IOException
      */
     public void lseek(long pos) throws IOException {
-        raf.seek(pos);
+        if (pos < 0) {
+            throw new IOException("Negative seek offset");
+        }
+        position = pos;
     }
 
     /**
@@ -139,10 +224,8 @@ public class OpenFile {
 
         Logger.log("Close(" + fileVersion.getRelativePath() + ")");
 
-        try {
-            raf.close();
-        } catch (Exception e) {
-            e.printStackTrace();
+        if (storage != null) {
+            fileVersion.releaseStorage();
         }
         fileVersion.updateLRU(); // Update LRU list after closing the file
         fileVersion.release();
@@ -155,7 +238,7 @@ public class OpenFile {
      * @throws IOException
      */
     public long getFilePointer() throws IOException {
-        return raf.getFilePointer();
+        return position;
     }
 
     /**
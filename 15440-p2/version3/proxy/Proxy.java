@@ -10,6 +10,8 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.rmi.Naming;
 import java.rmi.RemoteException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Proxy class
@@ -28,6 +30,109 @@ class Proxy {
 	 * Server
 	 */
 	private static ServerOperations server = null;
+	/**
+	 * Transport to the server, "rmi" or "nio"
+	 */
+	public static final String TRANSPORT = System.getProperty("proxy.transport", "rmi");
+	/**
+	 * True to cache files by blocks of {@link Server#CHUNK_SIZE}, fetching
+	 * missing blocks from the server on demand instead of on open
+	 */
+	public static final Boolean BLOCK_CACHE = Boolean.getBoolean("proxy.blockCache");
+	/**
+	 * Max number of chunk requests in flight when fetching a file from the server
+	 */
+	public static final int FETCH_WINDOW = Integer.getInteger("proxy.fetchWindow", 4);
+	/**
+	 * {@link ExecutorService}
+	 * Thread pool to issue chunk requests to the server
+	 */
+	private static ExecutorService transferPool = null;
+	/**
+	 * Max number of chunk writes in flight when uploading a file to the server
+	 */
+	public static final int UPLOAD_WINDOW = Integer.getInteger("proxy.uploadWindow", 4);
+	/**
+	 * {@link ChunkBufferPool}
+	 * Pool of chunk buffers for uploading and copying files
+	 */
+	private static ChunkBufferPool bufferPool = null;
+	/**
+	 * Number of threads uploading modified files to the server
+	 */
+	public static final int UPLOAD_THREADS = Integer.getInteger("proxy.uploadThreads", 4);
+	/**
+	 * Number of attempts to upload a modified file before giving up
+	 */
+	public static final int UPLOAD_ATTEMPTS = Integer.getInteger("proxy.uploadAttempts", 5);
+	/**
+	 * Time in milliseconds to wait before retrying a failed upload, doubled after
+	 * each attempt
+	 */
+	public static final long UPLOAD_RETRY_MILLIS = Long.getLong("proxy.uploadRetryMillis", 200);
+	/**
+	 * Max share of the cache size that modified files waiting for upload can take
+	 */
+	public static final double DIRTY_RATIO = Double.parseDouble(System.getProperty("proxy.dirtyRatio", "0.5"));
+	/**
+	 * {@link WriteBackUploader}
+	 * Uploader of modified files
+	 */
+	private static WriteBackUploader uploader = null;
+	/**
+	 * Max time in milliseconds to wait for cache space before failing with ENOSPC
+	 */
+	public static final long RESERVE_TIMEOUT = Long.getLong("proxy.reserveTimeout", 10000);
+	/**
+	 * Eviction policy of the cache: lru, lfu, arc, tinylfu or gdsf
+	 */
+	public static final String EVICTION_POLICY = System.getProperty("proxy.evictionPolicy", "lru");
+	/**
+	 * True to stream large or rarely reused files past the cache by the admission
+	 * filter, by default every file read is cached
+	 */
+	public static final Boolean ADMISSION = Boolean.getBoolean("proxy.admission");
+	/**
+	 * Max size of a file to cache when ADMISSION is on, as a share of the cache
+	 * size
+	 */
+	public static final double ADMIT_MAX_RATIO = Double.parseDouble(System.getProperty("proxy.admitMaxRatio", "0.5"));
+	/**
+	 * Files larger than this share of the cache size are only cached when fetched
+	 * again
+	 */
+	public static final double ADMIT_REUSE_RATIO = Double
+			.parseDouble(System.getProperty("proxy.admitReuseRatio", "0.1"));
+	/**
+	 * Min fetch count of a file larger than ADMIT_REUSE_RATIO to cache it
+	 */
+	public static final int ADMIT_MIN_FREQUENCY = Integer.getInteger("proxy.admitMinFrequency", 2);
+	/**
+	 * Max number of files checked in one checkFiles call, cached files of the
+	 * same directory whose leases expired are revalidated with the file opened:
+	 * removed files are dropped, small new versions are prefetched and leases
+	 * are extended. 1 to check only the file opened
+	 */
+	public static final int CHECK_BATCH_SIZE = Integer.getInteger("proxy.checkBatchSize", 32);
+	/**
+	 * True to read fully cached files opened for read from a memory mapping
+	 * shared by all open files of the version, instead of a read call each time
+	 */
+	public static final Boolean MMAP_READ = Boolean.getBoolean("proxy.mmapRead");
+	/**
+	 * Max bytes of the in-memory tier for small files, 0 to keep every file on
+	 * disk
+	 */
+	public static final long MEMORY_BUDGET = Long.getLong("proxy.memoryBudget", 0);
+	/**
+	 * Max size of a file kept in the in-memory tier
+	 */
+	public static final int MEMORY_THRESHOLD = Integer.getInteger("proxy.memoryThreshold", 65536);
+	/**
+	 * {@link MemoryTier}
+	 * In-memory tier of the cache
+	 */
+	private static MemoryTier memoryTier = null;
 
 	/**
 	 * FileHandler class
@@ -117,8 +222,7 @@ class Proxy {
 			}
 
 			try {
-				file.write(buf);
-				return buf.length;
+				return file.write(buf);
 			} catch (IOException e) {
 				System.out.println(e);
 				System.exit(-1);
@@ -211,6 +315,8 @@ class Proxy {
 		 */
 		public int unlink(String path) {
 			try {
+				// Don't let a pending upload recreate it, uploads are keyed by the normalized path
+				Proxy.getUploader().awaitPath(PathTools.normalizePath(path));
 				FileRemoveResult res = Proxy.getServer().removeFile(path); // Remove on server
 				if (res.getResCode() < 0) {
 					return res.getResCode(); // Return error code if failed
@@ -246,6 +352,42 @@ class Proxy {
 		return server;
 	}
 
+	/**
+	 * Get the uploader
+	 * 
+	 * @return {@link WriteBackUploader} Uploader of modified files
+	 */
+	public static WriteBackUploader getUploader() {
+		return uploader;
+	}
+
+	/**
+	 * Get the thread pool to issue chunk requests
+	 * 
+	 * @return {@link ExecutorService} Thread pool to issue chunk requests
+	 */
+	public static ExecutorService getTransferPool() {
+		return transferPool;
+	}
+
+	/**
+	 * Get the pool of chunk buffers
+	 * 
+	 * @return {@link ChunkBufferPool} Pool of chunk buffers
+	 */
+	public static ChunkBufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/**
+	 * Get the in-memory tier of the cache
+	 * 
+	 * @return {@link MemoryTier} In-memory tier of the cache
+	 */
+	public static MemoryTier getMemoryTier() {
+		return memoryTier;
+	}
+
 	/**
 	 * Set the cache
 	 * 
@@ -280,18 +422,34 @@ class Proxy {
 		}
 		long cachesize = Long.parseLong(args[3]); // Get the cache size
 
-		/* Look up the server */
+		/* Look up the server, serverport is the NIO port of the server when using NIO */
 		String serverUrl = "//" + serverip + ":" + serverport + "/Server";
 		try {
-			ServerOperations server = (ServerOperations) Naming.lookup(serverUrl);
+			ServerOperations server = null;
+			if (TRANSPORT.equals("nio")) {
+				server = new NioServerStub(serverip, serverport);
+			} else {
+				server = (ServerOperations) Naming.lookup(serverUrl);
+			}
 			setServer(server);
 		} catch (Exception e) {
 			System.out.println(e);
 			System.exit(-1);
 		}
 
+		memoryTier = new MemoryTier(MEMORY_BUDGET, MEMORY_THRESHOLD);
 		Cache cache = new Cache(cacheDir, cachesize); // Create a cache
 		setCache(cache);
+		transferPool = Executors.newCachedThreadPool(r -> {
+			Thread thread = new Thread(r, "transfer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		bufferPool = new ChunkBufferPool(UPLOAD_THREADS * (UPLOAD_WINDOW + 1));
+		uploader = new WriteBackUploader(UPLOAD_THREADS, (long) (cachesize * DIRTY_RATIO));
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> uploader.flush())); // Upload everything before exit
+		cache.restore(); // Come back warm with files cached before the restart
+		cache.register(); // Get invalidations of leased files from the server
 
 		System.out.println("Proxy is running on " + cacheDir + " with size " + cachesize);
 		(new RPCreceiver(new FileHandlingFactory())).run();
@@ -0,0 +1,54 @@
+
+/**
+ * SpaceRequest.java
+ * 
+ * @author Cundao Yu <cundaoy@andrew.cmu.edu>
+ */
+import java.util.concurrent.locks.Condition;
+
+/**
+ * A request of cache space waiting in the FIFO queue of the cache
+ * 
+ * Each request has its own condition, so a waker can signal exactly the request
+ * it can satisfy.
+ */
+public class SpaceRequest {
+    /**
+     * Size requested
+     */
+    private long size;
+    /**
+     * {@link Condition}
+     * Condition to wait on, created from the freeSize lock of the cache
+     */
+    private Condition ready;
+
+    /**
+     * Constructor
+     * 
+     * @param size  Size requested
+     * @param ready {@link Condition} Condition to wait on
+     */
+    public SpaceRequest(long size, Condition ready) {
+        this.size = size;
+        this.ready = ready;
+    }
+
+    /**
+     * Get the size requested
+     * 
+     * @return Size requested
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Get the condition to wait on
+     * 
+     * @return {@link Condition} Condition to wait on
+     */
+    public Condition getReady() {
+        return ready;
+    }
+}
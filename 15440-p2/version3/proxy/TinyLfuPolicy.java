@@ -0,0 +1,256 @@
+
+/**
+ * TinyLfuPolicy.java
+ * 
+ * @author Cundao Yu <cundaoy@andrew.cmu.edu>
+ */
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * W-TinyLFU eviction policy
+ * 
+ * New files enter a small LRU window. Files pushed out of the window go on
+ * probation while the main area has room. Once it's full, the least recently
+ * used file of a window over its size competes with the victim of the main
+ * area, the one with lower estimated frequency in {@link CountMinSketch} is
+ * evicted. So a
+ * scan of files used once can't push out files used again and again.
+ * The main area is a segmented LRU: files hit in probation are promoted to
+ * protected, files pushed out of protected go back to probation.
+ * Sizes are in bytes instead of number of files, since files have different
+ * sizes.
+ */
+public class TinyLfuPolicy implements EvictionPolicy {
+    /**
+     * Share of the cache size for the window
+     */
+    private static final double WINDOW_RATIO = 0.01;
+    /**
+     * Share of the main area for protected files
+     */
+    private static final double PROTECTED_RATIO = 0.8;
+
+    /**
+     * {@link CountMinSketch}
+     * Access frequency of paths
+     */
+    private CountMinSketch sketch;
+    /**
+     * Max size of the window
+     */
+    private long windowMax;
+    /**
+     * Max size of the main area
+     */
+    private long mainMax;
+    /**
+     * Max size of protected files
+     */
+    private long protectedMax;
+    /**
+     * {@link LinkedHashMap}<{@link CacheFile}, {@link Long}>
+     * Files in the window and their sizes, from the least recently used
+     */
+    private LinkedHashMap<CacheFile, Long> window;
+    /**
+     * {@link LinkedHashMap}<{@link CacheFile}, {@link Long}>
+     * Files on probation in the main area, from the least recently used
+     */
+    private LinkedHashMap<CacheFile, Long> probation;
+    /**
+     * {@link LinkedHashMap}<{@link CacheFile}, {@link Long}>
+     * Protected files in the main area, from the least recently used
+     */
+    private LinkedHashMap<CacheFile, Long> protectedFiles;
+    /**
+     * Total size of the window
+     */
+    private long windowSize;
+    /**
+     * Total size of files on probation
+     */
+    private long probationSize;
+    /**
+     * Total size of protected files
+     */
+    private long protectedSize;
+
+    /**
+     * Constructor
+     * 
+     * @param capacity Size of the cache
+     * @param sketch   {@link CountMinSketch} Sketch to count accesses
+     */
+    public TinyLfuPolicy(long capacity, CountMinSketch sketch) {
+        this.sketch = sketch;
+        this.windowMax = (long) (capacity * WINDOW_RATIO);
+        this.mainMax = capacity - windowMax;
+        this.protectedMax = (long) (mainMax * PROTECTED_RATIO);
+        this.window = new LinkedHashMap<CacheFile, Long>();
+        this.probation = new LinkedHashMap<CacheFile, Long>();
+        this.protectedFiles = new LinkedHashMap<CacheFile, Long>();
+        this.windowSize = 0;
+        this.probationSize = 0;
+        this.protectedSize = 0;
+    }
+
+    @Override
+    public void onInsert(CacheFile file) {
+        sketch.increment(file.getRelativePath());
+        long size = sizeOf(file);
+        window.put(file, size);
+        windowSize += size;
+        moveWindowOverflow();
+    }
+
+    @Override
+    public void onAccess(CacheFile file) {
+        sketch.increment(file.getRelativePath());
+        long size = sizeOf(file);
+        Long oldSize = window.remove(file);
+        if (oldSize != null) {
+            window.put(file, size); // Move to the most recently used
+            windowSize += size - oldSize;
+            moveWindowOverflow();
+            return;
+        }
+        oldSize = probation.remove(file);
+        if (oldSize != null) {
+            probationSize -= oldSize;
+        } else {
+            oldSize = protectedFiles.remove(file);
+            if (oldSize == null) {
+                return;
+            }
+            protectedSize -= oldSize;
+        }
+
+        /* Promote to protected, demote the least recently used protected files */
+        protectedFiles.put(file, size);
+        protectedSize += size;
+        Iterator<Map.Entry<CacheFile, Long>> it = protectedFiles.entrySet().iterator();
+        while (protectedSize > protectedMax && protectedFiles.size() > 1) {
+            Map.Entry<CacheFile, Long> demoted = it.next();
+            it.remove();
+            protectedSize -= demoted.getValue();
+            probation.put(demoted.getKey(), demoted.getValue());
+            probationSize += demoted.getValue();
+        }
+    }
+
+    @Override
+    public void onRemove(CacheFile file) {
+        Long size = window.remove(file);
+        if (size != null) {
+            windowSize -= size;
+            return;
+        }
+        size = probation.remove(file);
+        if (size != null) {
+            probationSize -= size;
+            return;
+        }
+        size = protectedFiles.remove(file);
+        if (size != null) {
+            protectedSize -= size;
+        }
+    }
+
+    @Override
+    public void onEvict(CacheFile file) {
+        onRemove(file);
+    }
+
+    @Override
+    public CacheFile selectVictim(Predicate<CacheFile> evictable) {
+        CacheFile candidate = windowSize > windowMax ? findVictim(window, evictable) : null;
+        CacheFile victim = findVictim(probation, evictable);
+        if (victim == null) {
+            victim = findVictim(protectedFiles, evictable);
+        }
+
+        if (candidate != null && victim != null) {
+            // Admit the window candidate only if it's used more often than the victim
+            if (sketch.frequency(candidate.getRelativePath()) > sketch.frequency(victim.getRelativePath())) {
+                long size = window.remove(candidate);
+                windowSize -= size;
+                probation.put(candidate, size);
+                probationSize += size;
+                return victim;
+            }
+            return candidate;
+        }
+        if (candidate != null) {
+            return candidate;
+        }
+        if (victim != null) {
+            return victim;
+        }
+        return findVictim(window, evictable);
+    }
+
+    @Override
+    public String getStatus() {
+        String status = "W-TinyLFU status: window: ";
+        for (CacheFile file : window.keySet()) {
+            status += file.getRelativePath() + " ";
+        }
+        status += "probation: ";
+        for (CacheFile file : probation.keySet()) {
+            status += file.getRelativePath() + " ";
+        }
+        status += "protected: ";
+        for (CacheFile file : protectedFiles.keySet()) {
+            status += file.getRelativePath() + " ";
+        }
+        return status;
+    }
+
+    /**
+     * Move the least recently used files of the window on probation while the
+     * window is over its size and the main area has room for them
+     */
+    private void moveWindowOverflow() {
+        Iterator<Map.Entry<CacheFile, Long>> it = window.entrySet().iterator();
+        while (windowSize > windowMax && window.size() > 1) {
+            Map.Entry<CacheFile, Long> oldest = it.next();
+            if (probationSize + protectedSize + oldest.getValue() > mainMax) {
+                break; // Main area is full, the file competes when a victim is needed
+            }
+            it.remove();
+            windowSize -= oldest.getValue();
+            probation.put(oldest.getKey(), oldest.getValue());
+            probationSize += oldest.getValue();
+        }
+    }
+
+    /**
+     * Find the least recently used file that can be evicted in a segment
+     * 
+     * @param segment   {@link LinkedHashMap} The segment
+     * @param evictable {@link Predicate}<{@link CacheFile}> True if a file can be
+     *                  evicted now
+     * @return {@link CacheFile} The file to evict, null if none
+     */
+    private CacheFile findVictim(LinkedHashMap<CacheFile, Long> segment, Predicate<CacheFile> evictable) {
+        for (CacheFile file : segment.keySet()) {
+            if (evictable.test(file)) {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the size of a file counted by the policy
+     * 
+     * @param file {@link CacheFile} The file
+     * @return Size of the file, at least 1
+     */
+    private static long sizeOf(CacheFile file) {
+        return Math.max(1, file.getNewestSize());
+    }
+}
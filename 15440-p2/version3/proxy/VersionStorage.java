@@ -0,0 +1,66 @@
+
+/**
+ * VersionStorage.java
+ * 
+ * @author Cundao Yu <cundaoy@andrew.cmu.edu>
+ */
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Backing of the content of a cached file version
+ * 
+ * The content is either a file in the cache directory, {@link DiskStorage}, or
+ * a slice of the memory tier, {@link MemoryStorage}. Open files, uploads and
+ * copies read and write the content only through this interface, by position,
+ * so one storage is shared by all users of a version.
+ */
+public interface VersionStorage {
+    /**
+     * Read from the content at a position
+     * 
+     * @param dst      {@link ByteBuffer} Buffer to read into
+     * @param position Position in the content
+     * @return Number of bytes read, -1 at the end of the content
+     * @throws IOException
+     */
+    int read(ByteBuffer dst, long position) throws IOException;
+
+    /**
+     * Write to the content at a position
+     * 
+     * @param src      {@link ByteBuffer} Buffer to write from
+     * @param position Position in the content
+     * @return Number of bytes written
+     * @throws IOException
+     */
+    int write(ByteBuffer src, long position) throws IOException;
+
+    /**
+     * Copy a range of the content to a file
+     * 
+     * @param position Position of the range
+     * @param count    Length of the range
+     * @param target   {@link FileChannel} File to write to, at its position
+     * @return Number of bytes copied
+     * @throws IOException
+     */
+    long transferTo(long position, long count, FileChannel target) throws IOException;
+
+    /**
+     * Map the content read-only
+     * 
+     * @param size Size of the content
+     * @return {@link MappedByteBuffer} The mapping, null if the content is
+     *         already in memory
+     * @throws IOException
+     */
+    MappedByteBuffer map(long size) throws IOException;
+
+    /**
+     * Close the storage after its last user
+     */
+    void close();
+}
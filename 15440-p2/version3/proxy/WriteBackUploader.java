@@ -0,0 +1,223 @@
+
+/**
+ * WriteBackUploader.java
+ * 
+ * @author Cundao Yu <cundaoy@andrew.cmu.edu>
+ */
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Background uploader of modified file versions
+ * 
+ * Closing a modified file publishes the new version in the cache at once and
+ * hands it to this uploader. Versions of the same path are uploaded in the
+ * order they were submitted, different paths are uploaded in parallel by a
+ * bounded thread pool.
+ * The total size of versions waiting for upload(dirty size) is limited,
+ * submitting blocks when the limit is exceeded.
+ * A failed upload is retried with exponential backoff, a version that still
+ * fails is dropped from the cache so it's fetched again from the server.
+ */
+public class WriteBackUploader {
+    /**
+     * Max time in milliseconds to wait between two attempts of an upload
+     */
+    private static final long MAX_RETRY_MILLIS = 10000;
+    /**
+     * {@link ExecutorService}
+     * Thread pool to upload files
+     */
+    private ExecutorService uploadPool;
+    /**
+     * {@link HashMap}<{@link String}, {@link ArrayDeque}<{@link CacheFileVersion}>>
+     * Versions waiting for upload of each path, the head is being uploaded
+     */
+    private HashMap<String, ArrayDeque<CacheFileVersion>> pendingTable;
+    /**
+     * Max total size of versions waiting for upload
+     */
+    private long maxDirtySize;
+    /**
+     * Total size of versions waiting for upload
+     */
+    private long dirtySize;
+    /**
+     * {@link ReentrantLock}
+     * The lock to protect pendingTable and dirtySize
+     */
+    private ReentrantLock lock;
+    /**
+     * {@link Condition}
+     * Signaled when an upload is done
+     */
+    private Condition uploadDone;
+
+    /**
+     * Constructor
+     * 
+     * @param threads      Number of upload threads
+     * @param maxDirtySize Max total size of versions waiting for upload
+     */
+    public WriteBackUploader(int threads, long maxDirtySize) {
+        this.uploadPool = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "uploader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.pendingTable = new HashMap<String, ArrayDeque<CacheFileVersion>>();
+        this.maxDirtySize = maxDirtySize;
+        this.dirtySize = 0;
+        this.lock = new ReentrantLock();
+        this.uploadDone = lock.newCondition();
+    }
+
+    /**
+     * Submit a file version to upload
+     * 
+     * The file version is used until it is uploaded, so it won't be deleted or
+     * evicted before that.
+     * Blocks while the dirty size is over the limit. A version larger than the
+     * limit is still accepted when nothing else is waiting.
+     * 
+     * @param fileVersion {@link CacheFileVersion} The file version to upload
+     */
+    public void submit(CacheFileVersion fileVersion) {
+        fileVersion.use();
+        long size = fileVersion.getSize();
+        String relativePath = fileVersion.getRelativePath();
+
+        lock.lock();
+        while (dirtySize > 0 && dirtySize + size > maxDirtySize) {
+            Logger.log("Dirty size: " + dirtySize + " is over limit, wait for uploading");
+            uploadDone.awaitUninterruptibly();
+        }
+        dirtySize += size;
+        ArrayDeque<CacheFileVersion> queue = pendingTable.get(relativePath);
+        if (queue == null) {
+            // No upload of this path is running, start one
+            queue = new ArrayDeque<CacheFileVersion>();
+            queue.add(fileVersion);
+            pendingTable.put(relativePath, queue);
+            uploadPool.execute(() -> uploadPath(relativePath));
+        } else {
+            queue.add(fileVersion); // Uploaded after previous versions of this path
+        }
+        lock.unlock();
+    }
+
+    /**
+     * Upload waiting versions of a path in order until none is left
+     * 
+     * @param relativePath {@link String} The relative path of the file
+     */
+    private void uploadPath(String relativePath) {
+        while (true) {
+            lock.lock();
+            ArrayDeque<CacheFileVersion> queue = pendingTable.get(relativePath);
+            CacheFileVersion fileVersion = queue.peek();
+            lock.unlock();
+
+            Boolean done = true;
+            try {
+                if (uploadWithRetry(fileVersion)) {
+                    Logger.log("Uploaded file: " + relativePath + " size: " + fileVersion.getSize());
+                } else {
+                    // The server doesn't have it, don't let the cache serve it as up to date
+                    Logger.log("Upload of " + relativePath + " gave up after " + Proxy.UPLOAD_ATTEMPTS
+                            + " attempts, the version is lost");
+                    Proxy.getCache().removeVersion(fileVersion);
+                }
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            } finally {
+                lock.lock();
+                queue.poll();
+                dirtySize -= fileVersion.getSize();
+                done = queue.isEmpty();
+                if (done) {
+                    pendingTable.remove(relativePath);
+                }
+                uploadDone.signalAll();
+                lock.unlock();
+
+                fileVersion.release(); // Release the use in submit
+            }
+            if (done) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Upload a version, retry with exponential backoff if it fails
+     * 
+     * @param fileVersion {@link CacheFileVersion} The file version to upload
+     * @return {@link Boolean} True if the version is committed on the server
+     */
+    private Boolean uploadWithRetry(CacheFileVersion fileVersion) {
+        long backoff = Proxy.UPLOAD_RETRY_MILLIS;
+        for (int attempt = 1;; attempt++) {
+            try {
+                if (fileVersion.uploadToServer()) {
+                    return true;
+                }
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+            if (attempt >= Proxy.UPLOAD_ATTEMPTS) {
+                return false;
+            }
+            Logger.log("Upload of " + fileVersion.getRelativePath() + " failed, retry in " + backoff + " ms");
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            backoff = Math.min(backoff * 2, MAX_RETRY_MILLIS);
+        }
+    }
+
+    /**
+     * Check if a path has versions waiting for upload
+     * 
+     * @param relativePath {@link String} The relative path of the file
+     * @return {@link Boolean} True if the path has versions waiting for upload
+     */
+    public Boolean isPending(String relativePath) {
+        lock.lock();
+        Boolean pending = pendingTable.containsKey(relativePath);
+        lock.unlock();
+        return pending;
+    }
+
+    /**
+     * Wait until all versions of a path are uploaded
+     * 
+     * @param relativePath {@link String} The relative path of the file
+     */
+    public void awaitPath(String relativePath) {
+        lock.lock();
+        while (pendingTable.containsKey(relativePath)) {
+            uploadDone.awaitUninterruptibly();
+        }
+        lock.unlock();
+    }
+
+    /**
+     * Wait until all versions are uploaded
+     */
+    public void flush() {
+        lock.lock();
+        while (!pendingTable.isEmpty()) {
+            Logger.log("Flush: " + pendingTable.size() + " files waiting for upload");
+            uploadDone.awaitUninterruptibly();
+        }
+        lock.unlock();
+    }
+}
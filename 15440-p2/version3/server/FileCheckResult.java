@@ -47,6 +47,11 @@ public class FileCheckResult implements Serializable {
      * First chunk of the file content
      */
     private byte[] firstChunk;
+    /**
+     * Length of the read lease of the version in milliseconds, 0 if no lease is
+     * granted
+     */
+    private long leaseMillis;
 
     /**
      * Constructor
@@ -59,10 +64,11 @@ public class FileCheckResult implements Serializable {
      * @param serverFd     File descriptor of the file in the server
      * @param size         Size of the file
      * @param firstChunk   First chunk of the file content
+     * @param leaseMillis  Length of the read lease in milliseconds, 0 if none
      */
     public FileCheckResult(int resCode, String relativePath, UUID verId, Boolean canRead, Boolean canWrite,
             int serverFd, long size,
-            byte[] firstChunk) {
+            byte[] firstChunk, long leaseMillis) {
         this.resCode = resCode;
         this.relativePath = relativePath;
         this.verId = verId;
@@ -71,6 +77,7 @@ public class FileCheckResult implements Serializable {
         this.serverFd = serverFd;
         this.size = size;
         this.firstChunk = firstChunk;
+        this.leaseMillis = leaseMillis;
     }
 
     public int getResCode() {
@@ -105,6 +112,20 @@ public class FileCheckResult implements Serializable {
         return firstChunk;
     }
 
+    public long getLeaseMillis() {
+        return leaseMillis;
+    }
+
+    /**
+     * Check if the whole content of a new version is in firstChunk, with no
+     * openfile on server
+     * 
+     * @return True if the content is inlined
+     */
+    public Boolean isInlined() {
+        return resCode == ResCode.NEW_VERSION && serverFd < 0 && firstChunk != null && firstChunk.length == size;
+    }
+
     public String toString() {
         return "----------FileCheckResult---------\n" +
                 "resCode: " + resCode + "\n" +
@@ -114,6 +135,7 @@ public class FileCheckResult implements Serializable {
                 "canWrite: " + canWrite + "\n" +
                 "serverFd: " + serverFd + "\n" +
                 "size: " + size + "\n" +
+                "leaseMillis: " + leaseMillis + "\n" +
                 "-------------------------------\n";
     }
 }
@@ -0,0 +1,25 @@
+
+/**
+ * InvalidationListener.java
+ * 
+ * @author Cundao Yu <cundaoy@andrew.cmu.edu>
+ */
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * Callback of a proxy registered to the server
+ * 
+ * The server calls it before a file leased by the proxy is updated or removed,
+ * the call returns after the proxy stopped using its lease.
+ */
+public interface InvalidationListener extends Remote {
+
+    /**
+     * Invalidate the cached version of a file
+     * 
+     * @param relativePath {@link String} Relative path of the file
+     * @throws RemoteException
+     */
+    void invalidate(String relativePath) throws RemoteException;
+}
@@ -0,0 +1,130 @@
+
+/**
+ * NioInvalidationListener.java
+ * 
+ * @author Cundao Yu <cundaoy@andrew.cmu.edu>
+ */
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Callback of a proxy registered on a NIO connection
+ * 
+ * It sends INVALIDATE frames on the connection of the proxy and waits for the
+ * acknowledgement, read by the connection thread of the dispatcher.
+ */
+public class NioInvalidationListener implements InvalidationListener {
+    /**
+     * Max time to wait for an acknowledgement in milliseconds
+     */
+    private static final long ACK_TIMEOUT = 5000;
+
+    /**
+     * {@link SocketChannel}
+     * Connection of the proxy
+     */
+    private SocketChannel channel;
+    /**
+     * {@link ReentrantLock}
+     * The lock to write on the connection, shared with responses
+     */
+    private ReentrantLock writeLock;
+    /**
+     * {@link AtomicLong}
+     * Next request ID of INVALIDATE frames
+     */
+    private AtomicLong nextRequestId;
+    /**
+     * {@link ConcurrentHashMap}<{@link Long}, {@link CompletableFuture}>
+     * Invalidations waiting for acknowledgement, by request ID
+     */
+    private ConcurrentHashMap<Long, CompletableFuture<Boolean>> pendingAcks;
+    /**
+     * {@link Boolean}
+     * True if the connection is closed
+     */
+    private volatile Boolean closed;
+
+    /**
+     * Constructor
+     * 
+     * @param channel   {@link SocketChannel} Connection of the proxy
+     * @param writeLock {@link ReentrantLock} The lock to write on the connection
+     */
+    public NioInvalidationListener(SocketChannel channel, ReentrantLock writeLock) {
+        this.channel = channel;
+        this.writeLock = writeLock;
+        this.nextRequestId = new AtomicLong(1);
+        this.pendingAcks = new ConcurrentHashMap<Long, CompletableFuture<Boolean>>();
+        this.closed = false;
+    }
+
+    /**
+     * Invalidate the cached version of a file on the proxy
+     * 
+     * @param relativePath {@link String} Relative path of the file
+     * @throws RemoteException If the proxy doesn't acknowledge in time
+     */
+    @Override
+    public void invalidate(String relativePath) throws RemoteException {
+        if (closed) {
+            throw new RemoteException("Connection to proxy closed");
+        }
+        long requestId = nextRequestId.getAndIncrement();
+        CompletableFuture<Boolean> ack = new CompletableFuture<Boolean>();
+        pendingAcks.put(requestId, ack);
+        byte[] path = NioProtocol.encodeString(relativePath);
+        ByteBuffer frame = NioProtocol.newFrame(requestId, NioProtocol.INVALIDATE, NioProtocol.sizeOf(path));
+        NioProtocol.putBytes(frame, path);
+        frame.flip();
+        writeLock.lock();
+        try {
+            NioProtocol.writeFully(channel, frame);
+        } catch (IOException e) {
+            pendingAcks.remove(requestId);
+            throw new RemoteException("Failed to send invalidation", e);
+        } finally {
+            writeLock.unlock();
+        }
+
+        try {
+            ack.get(ACK_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            throw new RemoteException("No acknowledgement of invalidation", e);
+        } finally {
+            pendingAcks.remove(requestId);
+        }
+    }
+
+    /**
+     * Handle an acknowledgement from the proxy
+     * 
+     * @param requestId Request ID of the INVALIDATE frame
+     */
+    public void acknowledge(long requestId) {
+        CompletableFuture<Boolean> ack = pendingAcks.remove(requestId);
+        if (ack != null) {
+            ack.complete(true);
+        }
+    }
+
+    /**
+     * Fail all waiting invalidations after the connection is closed
+     */
+    public void close() {
+        closed = true;
+        for (CompletableFuture<Boolean> ack : pendingAcks.values()) {
+            ack.completeExceptionally(new IOException("Connection to proxy closed"));
+        }
+        pendingAcks.clear();
+    }
+}
@@ -0,0 +1,364 @@
+
+/**
+ * NioProtocol.java
+ * 
+ * @author Cundao Yu <cundaoy@andrew.cmu.edu>
+ */
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * Binary protocol between proxy and server over NIO socket channels
+ * 
+ * Every message is a frame: [int length][long requestId][byte code][payload],
+ * length counts the bytes after itself. In a request, code is the operation;
+ * in a response, code is the status.
+ * Request IDs let one connection carry many requests at the same time,
+ * responses can come back in any order.
+ * The server also sends INVALIDATE frames to a registered proxy with request
+ * IDs of its own, the proxy acknowledges each one with an INVALIDATE frame of
+ * the same request ID and no payload.
+ */
+public class NioProtocol {
+    /* Operations, same as methods of ServerOperations */
+    public static final byte CHECK_FILE = 1;
+    public static final byte READ_FILE = 2;
+    public static final byte PUT_FILE = 3;
+    public static final byte WRITE_FILE = 4;
+    public static final byte CLOSE_FILE = 5;
+    public static final byte REMOVE_FILE = 6;
+    public static final byte REGISTER_PROXY = 7;
+    public static final byte INVALIDATE = 8; // Sent by the server, acknowledged by the proxy
+    public static final byte CHECK_FILES = 9;
+    public static final byte PUT_FILE_DELTA = 10;
+    public static final byte ABORT_FILE = 11;
+
+    /* Response status */
+    public static final byte OK = 0;
+    public static final byte ERROR = 1; // Payload is the error message
+
+    /**
+     * Size of the frame header following the length
+     */
+    public static final int HEADER_SIZE = 8 + 1;
+    /**
+     * Max size of a frame
+     */
+    public static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+    /**
+     * Size of an encoded UUID
+     */
+    public static final int UUID_SIZE = 1 + 16;
+
+    /**
+     * Allocate a frame and write its header
+     * 
+     * @param requestId   Request ID
+     * @param code        Operation of a request or status of a response
+     * @param payloadSize Size of the payload
+     * @return {@link ByteBuffer} The frame, positioned at the payload
+     */
+    public static ByteBuffer newFrame(long requestId, byte code, int payloadSize) {
+        ByteBuffer frame = ByteBuffer.allocate(4 + HEADER_SIZE + payloadSize);
+        frame.putInt(HEADER_SIZE + payloadSize);
+        frame.putLong(requestId);
+        frame.put(code);
+        return frame;
+    }
+
+    /**
+     * Allocate the header of a data response, the data is sent right after the
+     * header without being copied into the frame
+     * 
+     * @param requestId Request ID
+     * @param dataSize  Size of the data
+     * @return {@link ByteBuffer} The header, flipped for writing
+     */
+    public static ByteBuffer newDataHeader(long requestId, int dataSize) {
+        ByteBuffer header = ByteBuffer.allocate(4 + HEADER_SIZE + 4);
+        header.putInt(HEADER_SIZE + 4 + dataSize);
+        header.putLong(requestId);
+        header.put(OK);
+        header.putInt(dataSize); // Same layout as putBytes
+        header.flip();
+        return header;
+    }
+
+    /**
+     * Read a frame from a channel
+     * 
+     * @param channel      {@link SocketChannel} The channel to read from
+     * @param lengthBuffer {@link ByteBuffer} A reusable buffer of 4 bytes
+     * @return {@link ByteBuffer} The frame without length, positioned at the
+     *         request ID
+     * @throws IOException
+     */
+    public static ByteBuffer readFrame(SocketChannel channel, ByteBuffer lengthBuffer) throws IOException {
+        lengthBuffer.clear();
+        readFully(channel, lengthBuffer);
+        lengthBuffer.flip();
+        int length = lengthBuffer.getInt();
+        if (length < HEADER_SIZE || length > MAX_FRAME_SIZE) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        ByteBuffer frame = ByteBuffer.allocate(length);
+        readFully(channel, frame);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * Read from a channel until the buffer is full
+     * 
+     * @param channel {@link SocketChannel} The channel to read from
+     * @param buffer  {@link ByteBuffer} The buffer to fill
+     * @throws IOException
+     */
+    public static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Connection closed");
+            }
+        }
+    }
+
+    /**
+     * Write a whole frame to a channel
+     * 
+     * @param channel {@link SocketChannel} The channel to write to
+     * @param frame   {@link ByteBuffer} The frame, flipped for reading
+     * @throws IOException
+     */
+    public static void writeFully(SocketChannel channel, ByteBuffer frame) throws IOException {
+        while (frame.hasRemaining()) {
+            channel.write(frame);
+        }
+    }
+
+    /**
+     * Encode a string
+     * 
+     * @param str {@link String} The string, can be null
+     * @return {@link byte[]} UTF-8 bytes of the string, or null
+     */
+    public static byte[] encodeString(String str) {
+        return str == null ? null : str.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Get the encoded size of a byte array
+     * 
+     * @param bytes {@link byte[]} The byte array, can be null
+     * @return Encoded size
+     */
+    public static int sizeOf(byte[] bytes) {
+        return 4 + (bytes == null ? 0 : bytes.length);
+    }
+
+    /**
+     * Put a byte array as [int length][bytes], length is -1 for null
+     * 
+     * @param buffer {@link ByteBuffer} The buffer to put into
+     * @param bytes  {@link byte[]} The byte array, can be null
+     */
+    public static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            buffer.putInt(-1);
+            return;
+        }
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    /**
+     * Get a byte array put by {@link #putBytes}
+     * 
+     * @param buffer {@link ByteBuffer} The buffer to get from
+     * @return {@link byte[]} The byte array, can be null
+     */
+    public static byte[] getBytes(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Get a string put by {@link #putBytes} with {@link #encodeString}
+     * 
+     * @param buffer {@link ByteBuffer} The buffer to get from
+     * @return {@link String} The string, can be null
+     */
+    public static String getString(ByteBuffer buffer) {
+        byte[] bytes = getBytes(buffer);
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Put a UUID as [byte present][long msb][long lsb]
+     * 
+     * @param buffer {@link ByteBuffer} The buffer to put into
+     * @param uuid   {@link UUID} The UUID, can be null
+     */
+    public static void putUUID(ByteBuffer buffer, UUID uuid) {
+        buffer.put((byte) (uuid == null ? 0 : 1));
+        buffer.putLong(uuid == null ? 0 : uuid.getMostSignificantBits());
+        buffer.putLong(uuid == null ? 0 : uuid.getLeastSignificantBits());
+    }
+
+    /**
+     * Get a UUID put by {@link #putUUID}
+     * 
+     * @param buffer {@link ByteBuffer} The buffer to get from
+     * @return {@link UUID} The UUID, can be null
+     */
+    public static UUID getUUID(ByteBuffer buffer) {
+        Boolean present = buffer.get() != 0;
+        long msb = buffer.getLong();
+        long lsb = buffer.getLong();
+        return present ? new UUID(msb, lsb) : null;
+    }
+
+    /**
+     * Encode a response of file check
+     * 
+     * @param requestId Request ID
+     * @param result    {@link FileCheckResult} Result of the file check
+     * @return {@link ByteBuffer} The response frame
+     */
+    public static ByteBuffer encodeCheckResult(long requestId, FileCheckResult result) {
+        ByteBuffer frame = newFrame(requestId, OK, sizeOf(result));
+        putCheckResult(frame, result);
+        return frame;
+    }
+
+    /**
+     * Encode a response of checking files
+     * 
+     * @param requestId Request ID
+     * @param results   {@link FileCheckResult[]} Results of the file checks
+     * @return {@link ByteBuffer} The response frame
+     */
+    public static ByteBuffer encodeCheckResults(long requestId, FileCheckResult[] results) {
+        int payloadSize = 4;
+        for (FileCheckResult result : results) {
+            payloadSize += sizeOf(result);
+        }
+        ByteBuffer frame = newFrame(requestId, OK, payloadSize);
+        frame.putInt(results.length);
+        for (FileCheckResult result : results) {
+            putCheckResult(frame, result);
+        }
+        return frame;
+    }
+
+    /**
+     * Decode a response of checking files
+     * 
+     * @param buffer {@link ByteBuffer} The response payload
+     * @return {@link FileCheckResult[]} Results of the file checks
+     */
+    public static FileCheckResult[] decodeCheckResults(ByteBuffer buffer) {
+        FileCheckResult[] results = new FileCheckResult[buffer.getInt()];
+        for (int i = 0; i < results.length; i++) {
+            results[i] = decodeCheckResult(buffer);
+        }
+        return results;
+    }
+
+    /**
+     * Get the encoded size of a file check result
+     * 
+     * @param result {@link FileCheckResult} Result of the file check
+     * @return Encoded size
+     */
+    private static int sizeOf(FileCheckResult result) {
+        return 4 + sizeOf(encodeString(result.getRelativePath())) + UUID_SIZE + 2 + 4 + 8
+                + sizeOf(result.getFirstChunk()) + 8;
+    }
+
+    /**
+     * Put a file check result
+     * 
+     * @param frame  {@link ByteBuffer} The buffer to put into
+     * @param result {@link FileCheckResult} Result of the file check
+     */
+    private static void putCheckResult(ByteBuffer frame, FileCheckResult result) {
+        frame.putInt(result.getResCode());
+        putBytes(frame, encodeString(result.getRelativePath()));
+        putUUID(frame, result.getVerId());
+        frame.put((byte) (Boolean.TRUE.equals(result.getCanRead()) ? 1 : 0));
+        frame.put((byte) (Boolean.TRUE.equals(result.getCanWrite()) ? 1 : 0));
+        frame.putInt(result.getServerFd());
+        frame.putLong(result.getSize());
+        putBytes(frame, result.getFirstChunk());
+        frame.putLong(result.getLeaseMillis());
+    }
+
+    /**
+     * Decode a response of file check
+     * 
+     * @param buffer {@link ByteBuffer} The response payload
+     * @return {@link FileCheckResult} Result of the file check
+     */
+    public static FileCheckResult decodeCheckResult(ByteBuffer buffer) {
+        int resCode = buffer.getInt();
+        String relativePath = getString(buffer);
+        UUID verId = getUUID(buffer);
+        Boolean canRead = buffer.get() != 0;
+        Boolean canWrite = buffer.get() != 0;
+        int serverFd = buffer.getInt();
+        long size = buffer.getLong();
+        byte[] firstChunk = getBytes(buffer);
+        long leaseMillis = buffer.getLong();
+        return new FileCheckResult(resCode, relativePath, verId, canRead, canWrite, serverFd, size, firstChunk,
+                leaseMillis);
+    }
+
+    /**
+     * Encode a response of file remove
+     * 
+     * @param requestId Request ID
+     * @param result    {@link FileRemoveResult} Result of the file remove
+     * @return {@link ByteBuffer} The response frame
+     */
+    public static ByteBuffer encodeRemoveResult(long requestId, FileRemoveResult result) {
+        byte[] path = encodeString(result.getRelativePath());
+        ByteBuffer frame = newFrame(requestId, OK, 4 + sizeOf(path));
+        frame.putInt(result.getResCode());
+        putBytes(frame, path);
+        return frame;
+    }
+
+    /**
+     * Decode a response of file remove
+     * 
+     * @param buffer {@link ByteBuffer} The response payload
+     * @return {@link FileRemoveResult} Result of the file remove
+     */
+    public static FileRemoveResult decodeRemoveResult(ByteBuffer buffer) {
+        int resCode = buffer.getInt();
+        return new FileRemoveResult(resCode, getString(buffer));
+    }
+
+    /**
+     * Encode an error response
+     * 
+     * @param requestId Request ID
+     * @param message   {@link String} Error message
+     * @return {@link ByteBuffer} The response frame
+     */
+    public static ByteBuffer encodeError(long requestId, String message) {
+        byte[] bytes = encodeString(message);
+        ByteBuffer frame = newFrame(requestId, ERROR, sizeOf(bytes));
+        putBytes(frame, bytes);
+        return frame;
+    }
+}
@@ -0,0 +1,285 @@
+
+/**
+ * NioServerDispatcher.java
+ * 
+ * @author Cundao Yu <cundaoy@andrew.cmu.edu>
+ */
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Server side of the NIO transport
+ * 
+ * It accepts proxy connections and decodes request frames of
+ * {@link NioProtocol}, requests are handled by a worker pool and responses are
+ * written back on the same connection as they are ready.
+ * File data of readFile is sent with {@link FileChannel#transferTo}, it goes
+ * from the page cache to the socket without heap buffers.
+ * A proxy registered on a connection is invalidated by a
+ * {@link NioInvalidationListener} on the same connection, its
+ * acknowledgements are handled by the connection thread.
+ */
+public class NioServerDispatcher {
+    /**
+     * {@link Server}
+     * The server that handles requests
+     */
+    private Server server;
+    /**
+     * {@link ServerSocketChannel}
+     * Channel accepting proxy connections
+     */
+    private ServerSocketChannel serverChannel;
+    /**
+     * {@link ExecutorService}
+     * Thread pool to handle requests
+     */
+    private ExecutorService workerPool;
+
+    /**
+     * Constructor
+     * 
+     * @param server {@link Server} The server that handles requests
+     * @param port   Port to listen on
+     * @throws IOException
+     */
+    public NioServerDispatcher(Server server, int port) throws IOException {
+        this.server = server;
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(new InetSocketAddress(port));
+        this.workerPool = Executors.newCachedThreadPool();
+    }
+
+    /**
+     * Start accepting connections in background
+     */
+    public void start() {
+        Thread acceptThread = new Thread(() -> acceptConnections(), "nio-accept");
+        acceptThread.start();
+    }
+
+    /**
+     * Accept connections, each connection is read by its own thread
+     */
+    private void acceptConnections() {
+        while (true) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.socket().setTcpNoDelay(true);
+                new Thread(() -> serveConnection(channel), "nio-connection").start();
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Read requests from a connection until it's closed
+     * 
+     * @param channel {@link SocketChannel} The connection
+     */
+    private void serveConnection(SocketChannel channel) {
+        ReentrantLock writeLock = new ReentrantLock(); // Responses are written by workers
+        NioInvalidationListener listener = new NioInvalidationListener(channel, writeLock);
+        ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+        try {
+            while (true) {
+                ByteBuffer request = NioProtocol.readFrame(channel, lengthBuffer);
+                if (request.get(8) == NioProtocol.INVALIDATE) {
+                    listener.acknowledge(request.getLong(0)); // Not a request, no response
+                    continue;
+                }
+                workerPool.execute(() -> {
+                    if (request.get(8) == NioProtocol.READ_FILE) {
+                        sendFileRange(channel, writeLock, request);
+                        return;
+                    }
+                    ByteBuffer response = dispatch(request, listener);
+                    response.flip();
+                    writeLock.lock();
+                    try {
+                        NioProtocol.writeFully(channel, response);
+                    } catch (IOException e) {
+                        Logger.log("Failed to write response: " + e);
+                    } finally {
+                        writeLock.unlock();
+                    }
+                });
+            }
+        } catch (IOException e) {
+            Logger.log("Connection closed: " + e);
+        }
+        listener.close();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Handle a readFile request by transferring the file range straight to the
+     * connection
+     * 
+     * @param channel   {@link SocketChannel} The connection
+     * @param writeLock {@link ReentrantLock} The lock to write on the connection
+     * @param request   {@link ByteBuffer} The request frame, positioned at the
+     *                  request ID
+     */
+    private void sendFileRange(SocketChannel channel, ReentrantLock writeLock, ByteBuffer request) {
+        long requestId = request.getLong();
+        request.get(); // Skip op
+        int serverFd = request.getInt();
+        long offset = request.getLong();
+        int length = request.getInt();
+
+        ServerTempFile openFile = server.getOpenFile(serverFd);
+        // Pinned for the whole transfer, a concurrent close or abort can't close it under transferTo
+        FileChannel fileChannel = openFile == null ? null : openFile.pinChannel();
+        ByteBuffer header = null;
+        ByteBuffer data = null;
+        int dataSize = 0;
+        if (fileChannel != null) {
+            openFile.touch(); // The channel is read directly, mark it used like read does
+            dataSize = (int) Math.max(0, Math.min(length, openFile.getSize() - offset));
+            header = NioProtocol.newDataHeader(requestId, dataSize);
+        } else if (openFile != null && !openFile.isRead()) {
+            // A file being written has no snapshot to pin, read it to the heap
+            data = ByteBuffer.wrap(openFile.read(offset, length));
+            header = NioProtocol.newDataHeader(requestId, data.remaining());
+        } else {
+            header = NioProtocol.encodeError(requestId, "Invalid file descriptor");
+            header.flip();
+        }
+
+        /*
+         * The header promises dataSize bytes, if fewer are sent the frames after it
+         * can't be parsed. The source is pinned, so this only fails on a socket or
+         * disk error, then the connection is closed and the proxy fails the
+         * requests on it
+         */
+        Boolean broken = false;
+        writeLock.lock();
+        try {
+            NioProtocol.writeFully(channel, header);
+            if (data != null) {
+                NioProtocol.writeFully(channel, data);
+            }
+            long position = offset;
+            long remaining = dataSize;
+            while (remaining > 0) {
+                long transferred = fileChannel.transferTo(position, remaining, channel);
+                if (transferred <= 0) {
+                    throw new IOException("File ended with " + remaining + " bytes left to send");
+                }
+                position += transferred;
+                remaining -= transferred;
+            }
+        } catch (IOException e) {
+            Logger.log("Failed to write response: " + e);
+            broken = true;
+        } finally {
+            writeLock.unlock();
+            if (fileChannel != null) {
+                openFile.unpinChannel();
+            }
+        }
+        if (broken) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Decode a request, call the server and encode the response
+     * 
+     * readFile is handled by {@link #sendFileRange} instead.
+     * 
+     * @param request  {@link ByteBuffer} The request frame, positioned at the
+     *                 request ID
+     * @param listener {@link NioInvalidationListener} Callback of the proxy on
+     *                 this connection, registered by registerProxy
+     * @return {@link ByteBuffer} The response frame
+     */
+    private ByteBuffer dispatch(ByteBuffer request, NioInvalidationListener listener) {
+        long requestId = request.getLong();
+        byte op = request.get();
+        try {
+            switch (op) {
+                case NioProtocol.CHECK_FILE: {
+                    String reqPathStr = NioProtocol.getString(request);
+                    UUID proxyVerId = NioProtocol.getUUID(request);
+                    FileCheckResult result = server.checkFile(reqPathStr, proxyVerId, request.getInt());
+                    return NioProtocol.encodeCheckResult(requestId, result);
+                }
+                case NioProtocol.CHECK_FILES: {
+                    int count = request.getInt();
+                    String[] reqPathStrs = new String[count];
+                    UUID[] proxyVerIds = new UUID[count];
+                    for (int i = 0; i < count; i++) {
+                        reqPathStrs[i] = NioProtocol.getString(request);
+                        proxyVerIds[i] = NioProtocol.getUUID(request);
+                    }
+                    FileCheckResult[] results = server.checkFiles(reqPathStrs, proxyVerIds, request.getInt());
+                    return NioProtocol.encodeCheckResults(requestId, results);
+                }
+                case NioProtocol.REGISTER_PROXY: {
+                    ByteBuffer response = NioProtocol.newFrame(requestId, NioProtocol.OK, 4);
+                    response.putInt(server.registerProxy(listener));
+                    return response;
+                }
+                case NioProtocol.PUT_FILE: {
+                    String relativePath = NioProtocol.getString(request);
+                    int serverFd = server.putFile(relativePath, NioProtocol.getUUID(request));
+                    ByteBuffer response = NioProtocol.newFrame(requestId, NioProtocol.OK, 4);
+                    response.putInt(serverFd);
+                    return response;
+                }
+                case NioProtocol.PUT_FILE_DELTA: {
+                    String relativePath = NioProtocol.getString(request);
+                    UUID verId = NioProtocol.getUUID(request);
+                    UUID baseVerId = NioProtocol.getUUID(request);
+                    int serverFd = server.putFileDelta(relativePath, verId, baseVerId, request.getLong());
+                    ByteBuffer response = NioProtocol.newFrame(requestId, NioProtocol.OK, 4);
+                    response.putInt(serverFd);
+                    return response;
+                }
+                case NioProtocol.WRITE_FILE: {
+                    int serverFd = request.getInt();
+                    long offset = request.getLong();
+                    server.writeFile(serverFd, offset, NioProtocol.getBytes(request));
+                    return NioProtocol.newFrame(requestId, NioProtocol.OK, 0);
+                }
+                case NioProtocol.CLOSE_FILE: {
+                    server.closeFile(request.getInt());
+                    return NioProtocol.newFrame(requestId, NioProtocol.OK, 0);
+                }
+                case NioProtocol.ABORT_FILE: {
+                    server.abortFile(request.getInt());
+                    return NioProtocol.newFrame(requestId, NioProtocol.OK, 0);
+                }
+                case NioProtocol.REMOVE_FILE: {
+                    FileRemoveResult result = server.removeFile(NioProtocol.getString(request));
+                    return NioProtocol.encodeRemoveResult(requestId, result);
+                }
+                default:
+                    return NioProtocol.encodeError(requestId, "Unknown operation: " + op);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            return NioProtocol.encodeError(requestId, e.toString());
+        }
+    }
+}
@@ -5,14 +5,24 @@
  * @author Cundao Yu <cundaoy@andrew.cmu.edu>
  */
 import java.io.File;
+import java.io.IOException;
 import java.net.MalformedURLException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.rmi.Naming;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
+import java.rmi.server.ServerNotActiveException;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
 /**
  * Server class
@@ -25,6 +35,39 @@ public class Server extends UnicastRemoteObject implements ServerOperations {
      * Chunk size of any long sequence of data
      */
     public static final int CHUNK_SIZE = 1024 * 128;
+    /**
+     * Port of the NIO transport, -1 to serve only RMI
+     */
+    public static final int NIO_PORT = Integer.getInteger("server.nioPort", -1);
+    /**
+     * Length of read leases granted by checkFile in milliseconds, 0 to disable
+     * leases so proxies check on every open
+     */
+    public static final long LEASE_MILLIS = Long.getLong("server.leaseMillis", 0);
+    /**
+     * Length of read leases granted to registered proxies in milliseconds, 0 to
+     * grant them LEASE_MILLIS like others. These leases are revoked by
+     * invalidating the proxy, so they can be long.
+     */
+    public static final long CALLBACK_LEASE_MILLIS = Long.getLong("server.callbackLeaseMillis", 0);
+    /**
+     * Max size of a new version returned whole by checkFile, without an openfile
+     * to read by chunks and close. At most CHUNK_SIZE
+     */
+    public static final int INLINE_THRESHOLD = Math.min(CHUNK_SIZE,
+            Integer.getInteger("server.inlineThreshold", CHUNK_SIZE));
+    /**
+     * Time in milliseconds after which an open file not read or written is
+     * aborted, its owner is assumed gone. 0 to keep open files until closed
+     */
+    public static final long TEMP_TIMEOUT_MILLIS = Long.getLong("server.tempTimeoutMillis", 600000);
+    /**
+     * {@link Pattern}
+     * Name of a temporary file: path, UUID and TEMP_SUFFIX
+     */
+    private static final Pattern TEMP_NAME = Pattern
+            .compile(".*\\.[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}"
+                    + Pattern.quote(ServerFile.TEMP_SUFFIX));
 
     /**
      * Root directory of the server
@@ -40,6 +83,11 @@ public class Server extends UnicastRemoteObject implements ServerOperations {
      * File descriptor table of the server
      */
     private ServerTempFDTable fdTable;
+    /**
+     * {@link ScheduledExecutorService}
+     * Reaper of idle open files, null if TEMP_TIMEOUT_MILLIS is 0
+     */
+    private ScheduledExecutorService reaper;
 
     /**
      * Constructor
@@ -52,6 +100,77 @@ public class Server extends UnicastRemoteObject implements ServerOperations {
         this.rootdir = rootdir;
         this.fileTable = new ServerFileTable(this);
         this.fdTable = new ServerTempFDTable();
+        this.reaper = null;
+        deleteOrphanTempFiles();
+        if (TEMP_TIMEOUT_MILLIS > 0) {
+            startReaper();
+        }
+    }
+
+    /**
+     * Delete temporary files left by a previous run
+     * 
+     * Nothing is open at startup, so every temporary file under the root
+     * directory is an abandoned transfer. Only names ending with a UUID and
+     * TEMP_SUFFIX are deleted, cache directories of proxies under the root keep
+     * their files.
+     */
+    private void deleteOrphanTempFiles() {
+        try {
+            Files.walkFileTree(Paths.get(rootdir), new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile() && TEMP_NAME.matcher(file.getFileName().toString()).matches()) {
+                        Logger.log("Delete orphan temp file " + file);
+                        file.toFile().delete();
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE; // Skip what can't be read
+                }
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Start reaping open files idle for TEMP_TIMEOUT_MILLIS
+     * 
+     * The table is scanned every half timeout, so an abandoned open file is
+     * aborted within 1.5 timeouts.
+     */
+    private void startReaper() {
+        reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "temp-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, TEMP_TIMEOUT_MILLIS / 2);
+        long idleNanos = TimeUnit.MILLISECONDS.toNanos(TEMP_TIMEOUT_MILLIS);
+        reaper.scheduleWithFixedDelay(() -> {
+            int reaped = fdTable.reapIdle(idleNanos);
+            if (reaped > 0) {
+                Logger.log("Reaped " + reaped + " idle open files");
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Get the name of the client of the current call
+     * 
+     * @return {@link String} Host of the RMI client, "nio" for a call from the
+     *         NIO transport
+     */
+    private String getCaller() {
+        try {
+            return getClientHost();
+        } catch (ServerNotActiveException e) {
+            return "nio"; // Not an RMI call
+        }
     }
 
     /**
@@ -77,25 +196,75 @@ public class Server extends UnicastRemoteObject implements ServerOperations {
      * 
      * If there's new version. The server will created a temporary file and a
      * corresponding file descriptor for the client
-     * to read the file data by chunks.
+     * to read the file data by chunks. A new version of at most INLINE_THRESHOLD
+     * is returned whole in firstChunk instead, with serverFd -1, so the open
+     * takes one call.
+     * An existing file is granted a read lease of LEASE_MILLIS, the proxy may
+     * use the returned version without checking until the lease expires. Updates
+     * and removes of the file wait for its leases to expire.
+     * A registered proxy is granted a lease of CALLBACK_LEASE_MILLIS instead,
+     * it's invalidated before the file changes.
      * 
      * @param reqPathStr {@link String} Requested path
      * @param proxyVerId {@link UUID} Version ID of the file on the proxy
+     * @param proxyId    ID of the proxy from registerProxy, -1 if not registered
      * @return {@link FileCheckResult} Result of the file check
      * @throws RemoteException
      */
     @Override
-    public FileCheckResult checkFile(String reqPathStr, UUID proxyVerId) throws RemoteException {
+    public FileCheckResult checkFile(String reqPathStr, UUID proxyVerId, int proxyId) throws RemoteException {
+        return check(reqPathStr, proxyVerId, proxyId, true);
+    }
+
+    /**
+     * Check files on the server in one call
+     * 
+     * The first path is checked exactly like checkFile, so the proxy opening
+     * it needs no other call. The other paths are checked like checkFile, but a
+     * new version is not left open: a file of at most INLINE_THRESHOLD is
+     * returned whole in firstChunk, a larger one only with its version ID and
+     * size, the proxy fetches it by checkFile when it's opened. serverFd of
+     * their results is -1.
+     * 
+     * @param reqPathStrs  {@link String[]} Requested paths
+     * @param proxyVerIds  {@link UUID[]} Version IDs of the files on the proxy
+     * @param proxyId      ID of the proxy from registerProxy, -1 if not registered
+     * @return {@link FileCheckResult[]} Results of the file checks, in the order
+     *         of the paths
+     * @throws RemoteException
+     */
+    @Override
+    public FileCheckResult[] checkFiles(String[] reqPathStrs, UUID[] proxyVerIds, int proxyId)
+            throws RemoteException {
+        FileCheckResult[] results = new FileCheckResult[reqPathStrs.length];
+        for (int i = 0; i < reqPathStrs.length; i++) {
+            results[i] = check(reqPathStrs[i], proxyVerIds[i], proxyId, i == 0);
+        }
+        return results;
+    }
+
+    /**
+     * Check a file on the server
+     * 
+     * @param reqPathStr {@link String} Requested path
+     * @param proxyVerId {@link UUID} Version ID of the file on the proxy
+     * @param proxyId    ID of the proxy from registerProxy, -1 if not registered
+     * @param keepOpen   {@link Boolean} True to keep a new version larger than
+     *                   INLINE_THRESHOLD open for the proxy to read by chunks,
+     *                   False to return it without content
+     * @return {@link FileCheckResult} Result of the file check
+     */
+    private FileCheckResult check(String reqPathStr, UUID proxyVerId, int proxyId, Boolean keepOpen) {
         /* Check if the path is valid, except the last component */
         String absolutePathStr = PathTools.getAbsolutePath(reqPathStr, rootdir);
         int pathCheckRes = PathTools.checkPath(absolutePathStr, rootdir);
         if (pathCheckRes < 0) {
-            return new FileCheckResult(pathCheckRes, null, null, false, false, -1, -1, null);
+            return new FileCheckResult(pathCheckRes, null, null, false, false, -1, -1, null, 0);
         }
         File file = new File(absolutePathStr);
         if (file.isDirectory()) {
             // If the path is a directory
-            return new FileCheckResult(ResCode.EISDIR, null, null, false, false, -1, -1, null);
+            return new FileCheckResult(ResCode.EISDIR, null, null, false, false, -1, -1, null, 0);
         }
 
         /* Get the file from the file table */
@@ -103,40 +272,99 @@ public class Server extends UnicastRemoteObject implements ServerOperations {
         ServerFile serverFile = fileTable.getFile(relativePath, true, null, false);
         if (serverFile == null) {
             // If the file does not exist
-            return new FileCheckResult(ResCode.NOT_EXIST, relativePath, null, false, false, -1, -1, null);
+            return new FileCheckResult(ResCode.NOT_EXIST, relativePath, null, false, false, -1, -1, null, 0);
+        }
+        // Grant the lease before reading the version, so an update can't slip in between
+        long leaseMillis = 0;
+        if (CALLBACK_LEASE_MILLIS > 0 && fileTable.getProxy(proxyId) != null) {
+            leaseMillis = serverFile.grantLease(CALLBACK_LEASE_MILLIS, proxyId);
+        } else {
+            leaseMillis = serverFile.grantLease(LEASE_MILLIS, -1);
         }
 
         if (proxyVerId != null && proxyVerId.equals(serverFile.getVerId())) {
             // If the file is up-to-date
             return new FileCheckResult(ResCode.NO_UPDATE, relativePath, proxyVerId, serverFile.canRead(),
-                    serverFile.canWrite(), -1, -1, null);
+                    serverFile.canWrite(), -1, -1, null, leaseMillis);
         }
 
         // Return result of new version
         ServerTempFile openFile = serverFile.open(true, null);
+        if (openFile == null) {
+            // A new file is in the table just before its first version is renamed into place
+            return new FileCheckResult(ResCode.NOT_EXIST, relativePath, null, false, false, -1, -1, null, 0);
+        }
+        Boolean inline = openFile.getSize() <= INLINE_THRESHOLD;
+        if (inline || !keepOpen) {
+            // Read the whole small file from the snapshot and close it, nothing is left open
+            byte[] content = inline ? openFile.read(0, INLINE_THRESHOLD) : null;
+            FileCheckResult fileCheckResult = new FileCheckResult(ResCode.NEW_VERSION, relativePath,
+                    openFile.getVerId(), serverFile.canRead(), serverFile.canWrite(), -1, openFile.getSize(), content,
+                    leaseMillis);
+            openFile.close();
+            return fileCheckResult;
+        }
+        openFile.setOwner(proxyId >= 0 ? "proxy " + proxyId : getCaller());
         int serverFd = fdTable.addOpenFile(openFile);
-        FileCheckResult fileCheckResult = new FileCheckResult(ResCode.NEW_VERSION, relativePath, serverFile.getVerId(),
+        if (serverFd < 0) {
+            openFile.abort(); // No fd for it, nothing could read or close it
+            return new FileCheckResult(ResCode.ENFILE, relativePath, null, false, false, -1, -1, null, 0);
+        }
+        FileCheckResult fileCheckResult = new FileCheckResult(ResCode.NEW_VERSION, relativePath, openFile.getVerId(),
                 serverFile.canRead(),
-                serverFile.canWrite(), serverFd, serverFile.getSize(), openFile.read());
+                serverFile.canWrite(), serverFd, openFile.getSize(), openFile.read(0, CHUNK_SIZE), leaseMillis);
         return fileCheckResult;
     }
 
     /**
-     * Read the file on the server
+     * Register a proxy to be invalidated before its leased files change
+     * 
+     * @param listener {@link InvalidationListener} Callback of the proxy
+     * @return ID of the proxy
+     * @throws RemoteException
+     */
+    @Override
+    public int registerProxy(InvalidationListener listener) throws RemoteException {
+        int proxyId = fileTable.registerProxy(listener);
+        Logger.log("Register proxy " + proxyId);
+        return proxyId;
+    }
+
+    /**
+     * Read a range of the file on the server
      * 
-     * Used to read by chunks
+     * Used to read by chunks, chunks can be read in any order and in parallel
      * 
      * @param serverFd File descriptor of the file on the server
+     * @param offset   Offset in the file to read from
+     * @param length   Max number of bytes to read
      * @return {@link byte[]} Content of the file
      * @throws RemoteException
      */
     @Override
-    public byte[] readFile(int serverFd) throws RemoteException {
+    public byte[] readFile(int serverFd, long offset, int length) throws RemoteException {
         if (!fdTable.verifyFd(serverFd)) {
             throw new RemoteException("Invalid file descriptor");
         }
         ServerTempFile openFile = fdTable.getOpenFile(serverFd);
-        return openFile.read();
+        if (openFile == null) {
+            throw new RemoteException("Invalid file descriptor"); // Reaped meanwhile
+        }
+        return openFile.read(offset, length);
+    }
+
+    /**
+     * Get an opened temporary file on the server
+     * 
+     * @param serverFd File descriptor of the file on the server
+     * @return {@link ServerTempFile} The opened file, or null if the file
+     *         descriptor is invalid
+     */
+    public ServerTempFile getOpenFile(int serverFd) {
+        if (!fdTable.verifyFd(serverFd)) {
+            return null;
+        }
+        return fdTable.getOpenFile(serverFd);
     }
 
     /**
@@ -148,31 +376,81 @@ public class Server extends UnicastRemoteObject implements ServerOperations {
      * @param relativePath {@link String} Relative path of the file
      * @param verId        {@link UUID} Version ID of the file
      * @return File descriptor of the temp file on the server for later data
-     *         transfer
+     *         transfer, ENFILE if there are too many open files
      * @throws RemoteException
      */
     public int putFile(String relativePath, UUID verId) throws RemoteException {
         ServerFile serverFile = fileTable.getFile(relativePath, false, verId, true);
-        int serverFd = fdTable.addOpenFile(serverFile.open(false, verId));
+        ServerTempFile openFile = serverFile.open(false, verId);
+        openFile.setOwner(getCaller());
+        int serverFd = fdTable.addOpenFile(openFile);
+        if (serverFd < 0) {
+            openFile.abort(); // Discard the temporary file, nothing could write or close it
+            return ResCode.ENFILE;
+        }
+        return serverFd;
+    }
+
+    /**
+     * Request to put a file on the server as changes to a base version
+     * 
+     * If the base version is still the current version, the temporary file starts
+     * as a copy of it with the new size, and the client only writes the changed
+     * chunks. Otherwise the client should put the whole file by putFile.
+     * 
+     * @param relativePath {@link String} Relative path of the file
+     * @param verId        {@link UUID} Version ID of the file
+     * @param baseVerId    {@link UUID} Version ID of the base version
+     * @param size         Size of the new version
+     * @return File descriptor of the temp file on the server for later data
+     *         transfer, -1 if the base version is not current, ENFILE if there
+     *         are too many open files
+     * @throws RemoteException
+     */
+    @Override
+    public int putFileDelta(String relativePath, UUID verId, UUID baseVerId, long size) throws RemoteException {
+        ServerFile serverFile = fileTable.getFile(relativePath, false, verId, false);
+        if (serverFile == null) {
+            return -1;
+        }
+        ServerTempFile openFile = serverFile.openDelta(baseVerId, verId, size);
+        if (openFile == null) {
+            return -1;
+        }
+        openFile.setOwner(getCaller());
+        int serverFd = fdTable.addOpenFile(openFile);
+        if (serverFd < 0) {
+            openFile.abort(); // Discard the copy of the base, nothing could write or close it
+            return ResCode.ENFILE;
+        }
         return serverFd;
     }
 
     /**
      * Write the file on the server
      * 
-     * Used to write by chunks
+     * Used to write by chunks, chunks can be written in any order and in parallel
      * 
      * @param serverFd File descriptor of the file on the server
+     * @param offset   Offset in the file to write to
      * @param data     {@link byte[]} Data to write
      * @throws RemoteException
      */
     @Override
-    public void writeFile(int serverFd, byte[] data) throws RemoteException {
+    public void writeFile(int serverFd, long offset, byte[] data) throws RemoteException {
         if (!fdTable.verifyFd(serverFd)) {
             throw new RemoteException("Invalid file descriptor");
         }
         ServerTempFile openFile = fdTable.getOpenFile(serverFd);
-        openFile.write(data);
+        if (openFile == null) {
+            throw new RemoteException("Invalid file descriptor"); // Reaped meanwhile
+        }
+        try {
+            openFile.write(offset, data);
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RemoteException("Failed to write file", e); // The client must not commit it
+        }
     }
 
     /**
@@ -187,8 +465,31 @@ public class Server extends UnicastRemoteObject implements ServerOperations {
             throw new RemoteException("Invalid file descriptor");
         }
         ServerTempFile openFile = fdTable.getOpenFile(serverFd);
-        openFile.close();
-        fdTable.removeOpenFile(serverFd);
+        if (!fdTable.removeOpenFile(serverFd, openFile)) {
+            throw new RemoteException("Invalid file descriptor"); // Reaped meanwhile
+        }
+        if (!openFile.close()) {
+            throw new RemoteException("Failed to commit file"); // Not stored, the client keeps its version
+        }
+    }
+
+    /**
+     * Abort the opened temporary file on the server, a file opened for writing
+     * is discarded
+     * 
+     * @param serverFd File descriptor of the file on the server
+     * @throws RemoteException
+     */
+    @Override
+    public void abortFile(int serverFd) throws RemoteException {
+        if (!fdTable.verifyFd(serverFd)) {
+            throw new RemoteException("Invalid file descriptor");
+        }
+        ServerTempFile openFile = fdTable.getOpenFile(serverFd);
+        if (!fdTable.removeOpenFile(serverFd, openFile)) {
+            throw new RemoteException("Invalid file descriptor"); // Reaped meanwhile
+        }
+        openFile.abort();
     }
 
     /**
@@ -230,10 +531,16 @@ public class Server extends UnicastRemoteObject implements ServerOperations {
             Server server = new Server(rootdir);
             LocateRegistry.createRegistry(port);
             Naming.rebind("//localhost:" + port + "/Server", server);
+            if (NIO_PORT >= 0) {
+                new NioServerDispatcher(server, NIO_PORT).start(); // Also serve the NIO transport
+                System.out.println("NIO transport is running on port " + NIO_PORT);
+            }
         } catch (RemoteException e) {
             e.printStackTrace();
         } catch (MalformedURLException e) {
             e.printStackTrace();
+        } catch (IOException e) {
+            e.printStackTrace();
         }
         System.out.println("Server is running at " + rootdir + " on port " + port);
     }
@@ -5,15 +5,37 @@
  * @author Cundao Yu <cundaoy@andrew.cmu.edu>
  */
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.rmi.RemoteException;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Abstraction of a file in the server
+ * 
+ * Each file has its own read/write lock. Opening for reading takes the read
+ * lock, so readers of a file run in parallel; update and remove take the write
+ * lock, but only for the rename or the delete.
+ * Proxies may hold read leases of the current version. An update or a remove
+ * first stops granting leases and waits for the granted ones to expire, so a
+ * proxy never uses a version replaced before its lease ends.
+ * Leases of registered proxies are revoked by invalidating the proxy instead of
+ * waiting, unless the proxy can't be reached.
  */
 public class ServerFile {
+    /**
+     * Suffix of temporary files of versions being written
+     */
+    public static final String TEMP_SUFFIX = ".tmp";
     /**
      * {@link String}
      * Root directory
@@ -33,17 +55,52 @@ public class ServerFile {
      * {@link UUID}
      * Version ID
      */
-    private UUID verId;
+    private volatile UUID verId;
     /**
      * {@link Boolean}
      * True if the file can be read
      */
-    private Boolean canRead;
+    private volatile Boolean canRead;
     /**
      * {@link Boolean}
      * True if the file can be written
      */
-    private Boolean canWrite;
+    private volatile Boolean canWrite;
+    /**
+     * {@link AtomicReference}<{@link ServerSnapshot}>
+     * Snapshot of the current version shared by readers, null if not opened
+     */
+    private AtomicReference<ServerSnapshot> current;
+    /**
+     * {@link ReentrantReadWriteLock}
+     * The lock of the version of the file
+     */
+    private ReentrantReadWriteLock lock;
+    /**
+     * {@link Boolean}
+     * True if the file has been removed from the file table
+     */
+    private volatile Boolean removed;
+    /**
+     * {@link Object}
+     * The monitor of leaseExpiry and pendingWrites
+     */
+    private Object leaseMonitor;
+    /**
+     * Time when all leases granted to unregistered proxies expire, in
+     * System.nanoTime()
+     */
+    private long leaseExpiry;
+    /**
+     * {@link HashMap}<{@link Integer}, {@link Long}>
+     * Time when the lease of each registered proxy expires, by proxy ID
+     */
+    private HashMap<Integer, Long> leaseHolders;
+    /**
+     * Number of updates and removes waiting for leases to expire, no lease is
+     * granted while there's any
+     */
+    private int pendingWrites;
 
     /**
      * Constructor for an existing file
@@ -60,6 +117,13 @@ public class ServerFile {
         File file = new File(rootdir + relativePath);
         this.canRead = file.canRead();
         this.canWrite = file.canWrite();
+        this.current = new AtomicReference<ServerSnapshot>(null);
+        this.lock = new ReentrantReadWriteLock();
+        this.removed = false;
+        this.leaseMonitor = new Object();
+        this.leaseExpiry = System.nanoTime();
+        this.leaseHolders = new HashMap<Integer, Long>();
+        this.pendingWrites = 0;
     }
 
     /**
@@ -78,107 +142,324 @@ public class ServerFile {
         this.verId = verId;
         this.canRead = canRead;
         this.canWrite = canWrite;
+        this.current = new AtomicReference<ServerSnapshot>(null);
+        this.lock = new ReentrantReadWriteLock();
+        this.removed = false;
+        this.leaseMonitor = new Object();
+        this.leaseExpiry = System.nanoTime();
+        this.leaseHolders = new HashMap<Integer, Long>();
+        this.pendingWrites = 0;
+    }
+
+    /**
+     * Grant a read lease of the current version
+     * 
+     * @param leaseMillis Length of the lease in milliseconds
+     * @param proxyId     ID of the registered proxy to invalidate before the
+     *                    version changes, -1 to wait for the lease to expire
+     * @return Length of the lease granted, 0 if the file is being updated or
+     *         removed
+     */
+    public long grantLease(long leaseMillis, int proxyId) {
+        if (leaseMillis <= 0) {
+            return 0;
+        }
+        synchronized (leaseMonitor) {
+            if (pendingWrites > 0 || removed) {
+                return 0;
+            }
+            long expiry = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(leaseMillis);
+            if (proxyId >= 0) {
+                leaseHolders.put(proxyId, expiry);
+            } else if (expiry - leaseExpiry > 0) {
+                leaseExpiry = expiry;
+            }
+            return leaseMillis;
+        }
+    }
+
+    /**
+     * Stop granting leases, revoke the granted ones and wait for those can't be
+     * revoked to expire
+     * 
+     * Registered proxies holding a lease are invalidated, the ones that can't be
+     * reached are unregistered and their leases waited like others.
+     * Call endWrite after the update, a removed file never grants leases again.
+     */
+    public void awaitLeases() {
+        HashMap<Integer, Long> holders = null;
+        long expiry = 0;
+        synchronized (leaseMonitor) {
+            pendingWrites++;
+            holders = leaseHolders;
+            leaseHolders = new HashMap<Integer, Long>();
+            expiry = leaseExpiry;
+        }
+
+        /* Invalidate registered proxies without the monitor, it's a remote call */
+        for (Map.Entry<Integer, Long> holder : holders.entrySet()) {
+            if (holder.getValue() - System.nanoTime() <= 0) {
+                continue; // Expired already
+            }
+            InvalidationListener listener = fileTable.getProxy(holder.getKey());
+            try {
+                if (listener != null) {
+                    listener.invalidate(relativePath);
+                    continue;
+                }
+            } catch (RemoteException e) {
+                Logger.log("Failed to invalidate proxy " + holder.getKey() + ": " + e);
+                fileTable.unregisterProxy(holder.getKey());
+            }
+            if (holder.getValue() - expiry > 0) {
+                expiry = holder.getValue();
+            }
+        }
+
+        synchronized (leaseMonitor) {
+            try {
+                long remaining = expiry - System.nanoTime();
+                while (remaining > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(leaseMonitor, remaining);
+                    remaining = expiry - System.nanoTime();
+                }
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Grant leases again after an update
+     */
+    private void endWrite() {
+        synchronized (leaseMonitor) {
+            pendingWrites--;
+        }
     }
 
     /**
      * Open the file
      * 
-     * This creates a temporary copy for reading and writing by chunks.
+     * A file opened for reading shares the snapshot of the current version with
+     * other readers, no data is copied. A file opened for writing gets an empty
+     * temporary file, since the client writes the whole content by chunks.
      * By doing so, when transferring data by chunks, it won't block the file and
      * let other an access to the file.
      * 
      * @param read     {@link Boolean} True if the file is opened for only reading
      * @param newVerId {@link UUID} New version ID
-     * @return {@link ServerTempFile} Opened file
+     * @return {@link ServerTempFile} Opened file, null if the file is opened for
+     *         reading and doesn't exist on disk
      */
     public ServerTempFile open(Boolean read, UUID newVerId) {
-        File originalFile = new File(rootdir + relativePath);
-        File tempFile = new File(rootdir + relativePath + "." + UUID.randomUUID().toString()); // Temporary file
+        if (read) {
+            ServerSnapshot snapshot = openSnapshot();
+            return snapshot == null ? null : new ServerTempFile(this, snapshot);
+        }
+
+        File tempFile = newTempFile();
         try {
             tempFile.createNewFile();
         } catch (IOException e) {
             e.printStackTrace();
         }
-        if (!originalFile.exists()) {
-            return new ServerTempFile(this, tempFile, read ? verId : newVerId, read);
+        return new ServerTempFile(this, tempFile, newVerId);
+    }
+
+    /**
+     * Open the file for writing a new version based on the current version
+     * 
+     * The temporary file starts as a copy of the base version cut or extended to
+     * the new size, so the client only writes the blocks it changed. The copy is
+     * made from a snapshot on the server, no lock is held while copying.
+     * 
+     * @param baseVerId {@link UUID} Version ID of the base version
+     * @param newVerId  {@link UUID} New version ID
+     * @param size      Size of the new version
+     * @return {@link ServerTempFile} Opened file, null if the current version is
+     *         not the base version
+     */
+    public ServerTempFile openDelta(UUID baseVerId, UUID newVerId, long size) {
+        ServerSnapshot base = openSnapshot();
+        if (base == null) {
+            return null; // No current version yet
+        }
+        if (removed || !baseVerId.equals(base.getVerId())) {
+            base.release();
+            return null;
         }
 
-        /* Copy the original file to the temporary file */
-        try {
-            RandomAccessFile originalFileRandomAccessFile = new RandomAccessFile(originalFile, "r");
-            RandomAccessFile tempFileRandomAccessFile = new RandomAccessFile(tempFile, "rw");
-            long remaining = originalFileRandomAccessFile.length();
-            byte[] buffer = null;
-            while (remaining > 0) {
-                int readSize = (int) Math.min(remaining, Server.CHUNK_SIZE);
-                buffer = new byte[readSize];
-                originalFileRandomAccessFile.read(buffer); // Read by chunks
-                tempFileRandomAccessFile.write(buffer); // Write by chunks
-                remaining -= readSize;
+        File tempFile = newTempFile();
+        Boolean copied = false;
+        try (FileChannel tempChannel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE)) {
+            long copySize = Math.min(size, base.getSize());
+            long position = 0;
+            while (position < copySize) {
+                position += base.getChannel().transferTo(position, copySize - position, tempChannel);
             }
-            originalFileRandomAccessFile.close();
-            tempFileRandomAccessFile.close();
-
-            if (read) {
-                return new ServerTempFile(this, tempFile, verId, true);
-            } else {
-                return new ServerTempFile(this, tempFile, newVerId, false);
+            if (size > copySize) {
+                tempChannel.write(ByteBuffer.allocate(1), size - 1); // Extend to the new size
             }
-        } catch (Exception e) {
+            copied = true;
+        } catch (IOException e) {
             e.printStackTrace();
+        }
+        base.release();
+        if (!copied) {
+            tempFile.delete();
             return null;
         }
+        return new ServerTempFile(this, tempFile, newVerId);
     }
 
     /**
-     * Update the file with the content of the temporary file
+     * Get a new temporary file next to the file
+     * 
+     * It's named by the path, a random UUID and TEMP_SUFFIX, so temporary files
+     * left by a crash are found at startup.
+     * 
+     * @return {@link File} Temporary file, not created yet
+     */
+    private File newTempFile() {
+        return new File(rootdir + relativePath + "." + UUID.randomUUID().toString() + TEMP_SUFFIX);
+    }
+
+    /**
+     * Use the snapshot of the current version, open a new one if there's none
+     * 
+     * The read lock is held, so verId can't change and the snapshot always matches
+     * it. Readers racing to open a snapshot agree on one by compare-and-set.
+     * 
+     * @return {@link ServerSnapshot} Snapshot of the current version, null if the
+     *         file doesn't exist on disk
+     */
+    private ServerSnapshot openSnapshot() {
+        lock.readLock().lock();
+        try {
+            while (true) {
+                ServerSnapshot snapshot = current.get();
+                if (snapshot != null && snapshot.use()) {
+                    return snapshot;
+                }
+                // No reader of the current version, or its snapshot was just closed
+                ServerSnapshot newSnapshot = new ServerSnapshot(new File(rootdir + relativePath), verId);
+                if (!newSnapshot.use()) {
+                    return null; // Not on disk, a new file whose first version isn't renamed into place yet
+                }
+                if (current.compareAndSet(snapshot, newSnapshot)) {
+                    return newSnapshot;
+                }
+                newSnapshot.release(); // Another reader opened one first
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Update the file with the temporary file
+     * 
+     * It waits for the leases of the current version to expire first.
+     * After writting by chunks, the temporary file (already synced to disk)
+     * atomically replaces the file by rename, so the cost doesn't depend on the
+     * file size and no one can see a half written file.
+     * Readers of the old version keep reading their snapshot.
+     * The write lock is held, so the snapshot always matches verId, and verId is
+     * only changed after the rename.
+     * A file removed from the file table is not updated, the caller should update
+     * the file in the table instead.
      * 
-     * After writting by chunks, the temporary file will be used to update the file
+     * @param tempFile {@link File} Temporary file
+     * @param newVerId {@link UUID} New version ID
+     * @return {@link Boolean} True if updated successfully
+     */
+    public Boolean update(File tempFile, UUID newVerId) {
+        awaitLeases();
+        lock.writeLock().lock();
+        try {
+            if (removed) {
+                return false;
+            }
+            return replace(tempFile, newVerId);
+        } finally {
+            lock.writeLock().unlock();
+            endWrite();
+        }
+    }
+
+    /**
+     * Replace the file by the temporary file, with the write lock held
      * 
      * @param tempFile {@link File} Temporary file
      * @param newVerId {@link UUID} New version ID
+     * @return {@link Boolean} True if replaced successfully
      */
-    public void update(File tempFile, UUID newVerId) {
+    private Boolean replace(File tempFile, UUID newVerId) {
         File originalFile = new File(rootdir + relativePath);
-        if (!originalFile.exists()) {
+        Boolean exists = originalFile.exists();
+        if (exists) {
+            // Keep the permissions of the file
             try {
-                originalFile.createNewFile();
-                this.canRead = true;
-                this.canWrite = true;
-            } catch (IOException e) {
+                Files.setPosixFilePermissions(tempFile.toPath(), Files.getPosixFilePermissions(originalFile.toPath()));
+            } catch (IOException | UnsupportedOperationException e) {
                 e.printStackTrace();
             }
         }
 
-        /* Copy the data of temporary file to the original file */
         try {
-            RandomAccessFile originalFileRandomAccessFile = new RandomAccessFile(originalFile, "rw");
-            RandomAccessFile tempFileRandomAccessFile = new RandomAccessFile(tempFile, "r");
-            long remaining = tempFileRandomAccessFile.length();
-            byte[] buffer = null;
-            while (remaining > 0) {
-                int readSize = (int) Math.min(remaining, Server.CHUNK_SIZE);
-                buffer = new byte[readSize];
-                tempFileRandomAccessFile.read(buffer); // Read by chunks
-                originalFileRandomAccessFile.write(buffer); // Write by chunks
-                remaining -= readSize;
-            }
-            originalFileRandomAccessFile.close();
-            tempFileRandomAccessFile.close();
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
+            Files.move(tempFile.toPath(), originalFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | UnsupportedOperationException e) {
             e.printStackTrace();
+            Logger.log("Failed to update " + relativePath);
+            return false;
+        }
+        syncDirectory(originalFile.getParentFile());
+
+        if (!exists) {
+            this.canRead = true;
+            this.canWrite = true;
         }
+        current.set(null); // Next reader opens a snapshot of the new version
         verId = newVerId;
+        return true;
     }
 
     /**
-     * Remove the file
+     * Sync a directory to disk, so a rename in it survives a crash
+     * 
+     * @param dir {@link File} Directory
+     */
+    private static void syncDirectory(File dir) {
+        try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Some file systems don't support syncing a directory, the rename is still atomic
+        }
+    }
+
+    /**
+     * Remove the file, after it's removed from the file table
+     * 
+     * Readers of the removed version keep reading their snapshot.
+     * The caller should have waited for the leases by awaitLeases.
      */
     public void remove() {
-        File file = new File(rootdir + relativePath);
-        file.delete();
+        lock.writeLock().lock();
+        try {
+            File file = new File(rootdir + relativePath);
+            file.delete();
+            current.set(null);
+            removed = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public Boolean isRemoved() {
+        return removed;
     }
 
     public long getSize() {
@@ -5,11 +5,18 @@
  * @author Cundao Yu <cundaoy@andrew.cmu.edu>
  */
 import java.io.File;
-import java.util.HashMap;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * File table of the server
+ * 
+ * The table is a {@link ConcurrentHashMap}, no global lock is held. Accesses to
+ * a file are synchronized by the lock of its {@link ServerFile}, so different
+ * paths proceed in parallel.
+ * It also keeps the {@link InvalidationListener} of registered proxies, files
+ * invalidate them by proxy ID before they change.
  */
 public class ServerFileTable {
     /**
@@ -18,10 +25,20 @@ public class ServerFileTable {
      */
     private String rootdir;
     /**
-     * {@link HashMap}
+     * {@link ConcurrentHashMap}<{@link String}, {@link ServerFile}>
      * File table
      */
-    private HashMap<String, ServerFile> fileTable;
+    private ConcurrentHashMap<String, ServerFile> fileTable;
+    /**
+     * {@link ConcurrentHashMap}<{@link Integer}, {@link InvalidationListener}>
+     * Callbacks of registered proxies, by proxy ID
+     */
+    private ConcurrentHashMap<Integer, InvalidationListener> proxies;
+    /**
+     * {@link AtomicInteger}
+     * Next proxy ID
+     */
+    private AtomicInteger nextProxyId;
 
     /**
      * Constructor
@@ -30,14 +47,16 @@ public class ServerFileTable {
      */
     public ServerFileTable(Server server) {
         this.rootdir = server.getRootdir();
-        fileTable = new HashMap<String, ServerFile>();
+        fileTable = new ConcurrentHashMap<String, ServerFile>();
+        proxies = new ConcurrentHashMap<Integer, InvalidationListener>();
+        nextProxyId = new AtomicInteger(0);
     }
 
     /**
      * Get a file from the file table
      * 
-     * This method is synchronized, since it may also add a file that's not in the
-     * table but actually exists in the real file system to the table.
+     * It may also add a file that's not in the table but actually exists in the
+     * real file system to the table.
      * 
      * @param relativePath     {@link String} Relative path
      * @param read             {@link Boolean} True if the file can be read
@@ -46,7 +65,7 @@ public class ServerFileTable {
      *                         not exist
      * @return {@link ServerFile} File
      */
-    public synchronized ServerFile getFile(String relativePath, Boolean read, UUID newVerId,
+    public ServerFile getFile(String relativePath, Boolean read, UUID newVerId,
             Boolean createIfNotExist) {
         ServerFile serverFile = fileTable.get(relativePath);
         if (serverFile == null) {
@@ -67,12 +86,17 @@ public class ServerFileTable {
     /**
      * Remove a file from the file table.
      * 
-     * This method is synchronized, since it may remove a file from the table
+     * The file is removed from the table before it's deleted, so a file can't be
+     * found once it's marked removed.
      * 
      * @param relativePath {@link String} Relative path
      * @return Result code
      */
-    public synchronized int removeFile(String relativePath) {
+    public int removeFile(String relativePath) {
+        ServerFile leased = fileTable.get(relativePath);
+        if (leased != null) {
+            leased.awaitLeases(); // While still in the table, so no one leases it again from disk
+        }
         ServerFile fileRemoved = fileTable.remove(relativePath);
         int res = ResCode.SUCCESS;
         if (fileRemoved == null) {
@@ -83,6 +107,9 @@ public class ServerFileTable {
                 file.delete();
             }
         } else {
+            if (fileRemoved != leased) {
+                fileRemoved.awaitLeases(); // Added to the table after the wait above
+            }
             fileRemoved.remove();
         }
         return res;
@@ -91,24 +118,33 @@ public class ServerFileTable {
     /**
      * Update a file in the file table using a temporary file
      * 
-     * Create a new file if the file does not exist
+     * Create a new file if the file does not exist.
+     * The update is done under the lock of the file only.
      * 
      * @param relativePath {@link String} Relative path
      * @param tempFile     {@link File} Temporary file
      * @param verId        {@link UUID} Version ID
+     * @return {@link Boolean} True if updated successfully
      */
-    public synchronized void updateFile(String relativePath, File tempFile, UUID verId) {
-        ServerFile serverFile = fileTable.get(relativePath);
-        if (serverFile != null) {
-            // ServerFile object already exists, update it
-            serverFile.update(tempFile, verId);
-            return;
+    public Boolean updateFile(String relativePath, File tempFile, UUID verId) {
+        while (true) {
+            ServerFile serverFile = fileTable.get(relativePath);
+            if (serverFile == null) {
+                // ServerFile object does not exist, create a new one, its verId is set by update
+                ServerFile newFile = new ServerFile(this, relativePath, UUID.randomUUID());
+                serverFile = fileTable.putIfAbsent(relativePath, newFile);
+                if (serverFile == null) {
+                    serverFile = newFile;
+                }
+            }
+            if (serverFile.update(tempFile, verId)) {
+                return true;
+            }
+            if (!serverFile.isRemoved()) {
+                return false;
+            }
+            // The file was removed while updating, update the new one in the table
         }
-
-        // ServerFile object does not exist, create a new one
-        serverFile = new ServerFile(this, relativePath, verId);
-        fileTable.put(relativePath, serverFile);
-        serverFile.update(tempFile, verId);
     }
 
     /**
@@ -123,8 +159,45 @@ public class ServerFileTable {
             return null;
         }
         ServerFile serverFile = new ServerFile(this, relativePath, UUID.randomUUID());
-        fileTable.put(relativePath, serverFile);
-        return serverFile;
+        ServerFile existing = fileTable.putIfAbsent(relativePath, serverFile); // Someone may add it first
+        return existing == null ? serverFile : existing;
+    }
+
+    /**
+     * Register a proxy
+     * 
+     * @param listener {@link InvalidationListener} Callback of the proxy
+     * @return ID of the proxy
+     */
+    public int registerProxy(InvalidationListener listener) {
+        int proxyId = nextProxyId.getAndIncrement();
+        proxies.put(proxyId, listener);
+        return proxyId;
+    }
+
+    /**
+     * Unregister a proxy that can't be reached
+     * 
+     * @param proxyId ID of the proxy
+     */
+    public void unregisterProxy(int proxyId) {
+        if (proxies.remove(proxyId) != null) {
+            Logger.log("Unregister proxy " + proxyId);
+        }
+    }
+
+    /**
+     * Get the callback of a registered proxy
+     * 
+     * @param proxyId ID of the proxy
+     * @return {@link InvalidationListener} Callback of the proxy, null if not
+     *         registered
+     */
+    public InvalidationListener getProxy(int proxyId) {
+        if (proxyId < 0) {
+            return null;
+        }
+        return proxies.get(proxyId);
     }
 
     /**
@@ -16,21 +16,52 @@ public interface ServerOperations extends Remote {
     /**
      * Check file on the server
      * 
+     * A small new version is returned whole without an openfile on the server,
+     * a larger one is left open to read by chunks and close.
+     * 
      * @param reqPathStr {@link String} Requested path
      * @param proxyVerId {@link UUID} Version ID of the proxy
+     * @param proxyId    ID of the proxy from registerProxy, -1 if not registered
      * @return {@link FileCheckResult} Result of the file check
      * @throws RemoteException
      */
-    FileCheckResult checkFile(String reqPathStr, UUID proxyVerId) throws RemoteException;
+    FileCheckResult checkFile(String reqPathStr, UUID proxyVerId, int proxyId) throws RemoteException;
+
+    /**
+     * Check files on the server in one call
+     * 
+     * The first path is checked like checkFile. A new version of the other paths
+     * is not left open, it's returned whole if it's small, otherwise without
+     * content.
+     * 
+     * @param reqPathStrs {@link String[]} Requested paths
+     * @param proxyVerIds {@link UUID[]} Version IDs of the files on the proxy
+     * @param proxyId     ID of the proxy from registerProxy, -1 if not registered
+     * @return {@link FileCheckResult[]} Results of the file checks, in the order
+     *         of the paths
+     * @throws RemoteException
+     */
+    FileCheckResult[] checkFiles(String[] reqPathStrs, UUID[] proxyVerIds, int proxyId) throws RemoteException;
 
     /**
-     * Read from a temporary file on the server
+     * Register a proxy to be invalidated before its leased files change
+     * 
+     * @param listener {@link InvalidationListener} Callback of the proxy
+     * @return ID of the proxy
+     * @throws RemoteException
+     */
+    int registerProxy(InvalidationListener listener) throws RemoteException;
+
+    /**
+     * Read a range of a temporary file on the server
      * 
      * @param serverFd File descriptor of the file in the server
+     * @param offset   Offset in the file to read from
+     * @param length   Max number of bytes to read
      * @return Data read from the file
      * @throws RemoteException
      */
-    byte[] readFile(int serverFd) throws RemoteException;
+    byte[] readFile(int serverFd, long offset, int length) throws RemoteException;
 
     /**
      * Request to put a file on the server.
@@ -39,19 +70,38 @@ public interface ServerOperations extends Remote {
      * 
      * @param relativePath {@link String} Relative path
      * @param verId        {@link UUID} Version ID
-     * @return File descriptor of the file on the server for later data transfer
+     * @return File descriptor of the file on the server for later data transfer,
+     *         ENFILE if the server has too many open files
      * @throws RemoteException
      */
     int putFile(String relativePath, UUID verId) throws RemoteException;
 
     /**
-     * Write to a temporary file on the server
+     * Request to put a file on the server as changes to a base version
+     * 
+     * The temporary file starts as a copy of the base version with the new size,
+     * only changed chunks need to be written.
+     * 
+     * @param relativePath {@link String} Relative path
+     * @param verId        {@link UUID} Version ID
+     * @param baseVerId    {@link UUID} Version ID of the base version
+     * @param size         Size of the new version
+     * @return File descriptor of the file on the server for later data transfer,
+     *         -1 if the base version is not current on the server, ENFILE if
+     *         the server has too many open files
+     * @throws RemoteException
+     */
+    int putFileDelta(String relativePath, UUID verId, UUID baseVerId, long size) throws RemoteException;
+
+    /**
+     * Write to a temporary file on the server at a given offset
      * 
      * @param serverFd File descriptor of the file in the server
+     * @param offset   Offset in the file to write to
      * @param data     Data to write
      * @throws RemoteException
      */
-    void writeFile(int serverFd, byte[] data) throws RemoteException;
+    void writeFile(int serverFd, long offset, byte[] data) throws RemoteException;
 
     /**
      * Close a temporary file on the server
@@ -61,6 +111,14 @@ public interface ServerOperations extends Remote {
      */
     void closeFile(int serverFd) throws RemoteException;
 
+    /**
+     * Abort a temporary file on the server without committing it
+     * 
+     * @param serverFd File descriptor of the file in the server
+     * @throws RemoteException
+     */
+    void abortFile(int serverFd) throws RemoteException;
+
     /**
      * Remove a file on the server
      * 
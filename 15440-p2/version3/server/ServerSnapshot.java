@@ -0,0 +1,127 @@
+
+/**
+ * ServerSnapshot.java
+ * 
+ * @author Cundao Yu <cundaoy@andrew.cmu.edu>
+ */
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+
+/**
+ * Immutable snapshot of a version of a file in the server
+ * 
+ * It keeps an open channel of the file. A new version replaces the file by
+ * rename, so the channel still reads the version it was opened on.
+ * Readers of the same version share one snapshot, it's reference counted and
+ * the channel is closed when no one uses it.
+ */
+public class ServerSnapshot {
+    /**
+     * {@link UUID}
+     * Version ID
+     */
+    private UUID verId;
+    /**
+     * {@link FileChannel}
+     * Channel of the file, null if closed
+     */
+    private FileChannel channel;
+    /**
+     * Size of the file
+     */
+    private long size;
+    /**
+     * Reference count of the snapshot
+     */
+    private long refCount;
+
+    /**
+     * Constructor
+     * 
+     * @param file  {@link File} The file of the version
+     * @param verId {@link UUID} Version ID
+     */
+    public ServerSnapshot(File file, UUID verId) {
+        this.verId = verId;
+        this.refCount = 0;
+        try {
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            this.size = channel.size();
+        } catch (IOException e) {
+            e.printStackTrace();
+            this.channel = null;
+            this.size = 0;
+        }
+    }
+
+    /**
+     * Use this snapshot
+     * 
+     * This method is synchronized to keep the refCount consistent
+     * 
+     * @return True if used successfully, False if the snapshot is closed
+     */
+    public synchronized Boolean use() {
+        if (channel == null) {
+            return false;
+        }
+        refCount++;
+        return true;
+    }
+
+    /**
+     * Release this snapshot, close the channel if no one uses it
+     * 
+     * This method is synchronized to keep the refCount consistent
+     */
+    public synchronized void release() {
+        refCount--;
+        if (refCount == 0 && channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * Read data from the snapshot at a given offset
+     * 
+     * @param offset Offset in the file to read from
+     * @param length Max number of bytes to read
+     * @return {@link byte[]} Data
+     */
+    public byte[] read(long offset, int length) {
+        int readSize = (int) Math.max(0, Math.min(length, size - offset));
+        ByteBuffer buffer = ByteBuffer.allocate(readSize);
+        try {
+            while (buffer.hasRemaining()) {
+                int n = channel.read(buffer, offset + buffer.position());
+                if (n < 0) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return buffer.array();
+    }
+
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    public UUID getVerId() {
+        return verId;
+    }
+
+    public long getSize() {
+        return size;
+    }
+}
@@ -4,36 +4,60 @@
  * 
  * @author Cundao Yu <cundaoy@andrew.cmu.edu>
  */
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * File descriptor table for temp files on server
+ * 
+ * The table is lock free. Used slots are kept in a bitmap of longs, a slot is
+ * taken by compare-and-set of its bit, so concurrent opens never wait for each
+ * other and the lowest free slot is always taken first. Finding it scans at
+ * most MAX_SIZE / 64 words.
+ * Open files idle for too long are reaped, an open file is removed by
+ * compare-and-set of its slot so it's either closed or reaped, never both.
+ * A descriptor is the slot in its low SLOT_BITS bits and a generation of the
+ * slot above them, so a client using the descriptor of a reaped open file
+ * never gets the open file that took the slot after it.
  */
 public class ServerTempFDTable {
     /**
      * Max size of the table
      */
     private static final int MAX_SIZE = 10240;
+    /**
+     * Number of low bits of a descriptor holding the slot
+     */
+    private static final int SLOT_BITS = 14;
+    /**
+     * Mask of the slot in a descriptor
+     */
+    private static final int SLOT_MASK = (1 << SLOT_BITS) - 1;
 
     /**
-     * {@link List}<{@link ServerTempFile}>
-     * Open files table, index is the file descriptor
+     * {@link AtomicReferenceArray}<{@link ServerTempFile}>
+     * Open files table, index is the slot of the file descriptor
      */
-    private List<ServerTempFile> openFiles;
+    private AtomicReferenceArray<ServerTempFile> openFiles;
     /**
-     * {@link ReentrantReadWriteLock}
-     * Lock for the table
+     * {@link AtomicLongArray}
+     * Bitmap of used slots, bit slot % 64 of word slot / 64
      */
-    private ReentrantReadWriteLock lock;
+    private AtomicLongArray usedFds;
+    /**
+     * {@link AtomicIntegerArray}
+     * Generation of each slot, increased each time the slot is taken
+     */
+    private AtomicIntegerArray generations;
 
     /**
      * Constructor
      */
     public ServerTempFDTable() {
-        openFiles = new ArrayList<ServerTempFile>();
-        lock = new ReentrantReadWriteLock();
+        openFiles = new AtomicReferenceArray<ServerTempFile>(MAX_SIZE);
+        usedFds = new AtomicLongArray((MAX_SIZE + 63) / 64);
+        generations = new AtomicIntegerArray(MAX_SIZE);
     }
 
     /**
@@ -43,38 +67,30 @@ public class ServerTempFDTable {
      * @return {@link Boolean} True if the file descriptor is valid
      */
     public Boolean verifyFd(int fd) {
-        lock.readLock().lock();
-        if (fd < 0 || fd >= openFiles.size()) {
-            lock.readLock().unlock();
-            return false;
-        }
-
-        if (openFiles.get(fd) == null) {
-            lock.readLock().unlock();
-            return false;
-        }
-
-        lock.readLock().unlock();
-        return true;
+        return getOpenFile(fd) != null;
     }
 
     /**
-     * Get a free file descriptor
+     * Take the lowest free slot
      * 
-     * @return File descriptor
+     * @return Slot, -1 if the table is full
      */
-    private int getFreeFd() {
-        for (int i = 0; i < openFiles.size(); i++) {
-            if (openFiles.get(i) == null) {
-                return i;
+    private int takeFreeSlot() {
+        for (int word = 0; word < usedFds.length(); word++) {
+            long bits = usedFds.get(word);
+            while (bits != -1L) {
+                int bit = Long.numberOfTrailingZeros(~bits); // Lowest free bit of the word
+                int slot = word * 64 + bit;
+                if (slot >= MAX_SIZE) {
+                    return -1;
+                }
+                if (usedFds.compareAndSet(word, bits, bits | (1L << bit))) {
+                    return slot;
+                }
+                bits = usedFds.get(word); // Lost the race, try the word again
             }
         }
 
-        if (openFiles.size() < MAX_SIZE) {
-            openFiles.add(null);
-            return openFiles.size() - 1;
-        }
-
         return -1;
     }
 
@@ -82,13 +98,17 @@ public class ServerTempFDTable {
      * Add an open file to the table
      * 
      * @param file {@link ServerTempFile} Open file
-     * @return File descriptor
+     * @return File descriptor, -1 if the table is full
      */
     public int addOpenFile(ServerTempFile file) {
-        lock.writeLock().lock();
-        int fd = getFreeFd();
-        openFiles.set(fd, file);
-        lock.writeLock().unlock();
+        int slot = takeFreeSlot();
+        if (slot < 0) {
+            return -1;
+        }
+        int generation = generations.incrementAndGet(slot) & (Integer.MAX_VALUE >>> SLOT_BITS);
+        int fd = (generation << SLOT_BITS) | slot;
+        file.setFd(fd);
+        openFiles.set(slot, file);
         return fd;
     }
 
@@ -96,23 +116,63 @@ public class ServerTempFDTable {
      * Get the open file from the table
      * 
      * @param fd File descriptor
-     * @return {@link ServerTempFile} Open file
+     * @return {@link ServerTempFile} Open file, null if the descriptor is not
+     *         open
      */
     public ServerTempFile getOpenFile(int fd) {
-        lock.readLock().lock();
-        ServerTempFile file = openFiles.get(fd);
-        lock.readLock().unlock();
+        if (fd < 0 || (fd & SLOT_MASK) >= MAX_SIZE) {
+            return null;
+        }
+        ServerTempFile file = openFiles.get(fd & SLOT_MASK);
+        if (file == null || file.getFd() != fd) {
+            return null; // Free, or taken again after the descriptor was closed
+        }
         return file;
     }
 
     /**
      * Remove an open file from the table
      * 
-     * @param fd File descriptor
+     * The slot is emptied before the descriptor is freed, so a new open file
+     * taking the descriptor is never overwritten.
+     * 
+     * @param fd   File descriptor
+     * @param file {@link ServerTempFile} The open file expected at fd
+     * @return {@link Boolean} True if removed, False if fd has no longer this
+     *         open file
+     */
+    public Boolean removeOpenFile(int fd, ServerTempFile file) {
+        int slot = fd & SLOT_MASK;
+        if (file == null || fd < 0 || slot >= MAX_SIZE || !openFiles.compareAndSet(slot, file, null)) {
+            return false;
+        }
+        int word = slot / 64;
+        long bit = 1L << (slot % 64);
+        long bits = usedFds.get(word);
+        while (!usedFds.compareAndSet(word, bits, bits & ~bit)) {
+            bits = usedFds.get(word);
+        }
+        return true;
+    }
+
+    /**
+     * Abort and remove open files not read or written for a while
+     * 
+     * @param idleNanos Idle time in nanoseconds
+     * @return Number of open files reaped
      */
-    public synchronized void removeOpenFile(int fd) {
-        lock.writeLock().lock();
-        openFiles.set(fd, null);
-        lock.writeLock().unlock();
+    public int reapIdle(long idleNanos) {
+        int reaped = 0;
+        for (int slot = 0; slot < MAX_SIZE; slot++) {
+            if ((usedFds.get(slot / 64) & (1L << (slot % 64))) == 0) {
+                continue;
+            }
+            ServerTempFile file = openFiles.get(slot);
+            if (file != null && file.isIdle(idleNanos) && removeOpenFile(file.getFd(), file)) {
+                file.abort();
+                reaped++;
+            }
+        }
+        return reaped;
     }
 }
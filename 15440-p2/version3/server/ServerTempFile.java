@@ -7,12 +7,18 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.UUID;
 
 /**
  * Temp file class in the server
  * 
  * This is used to write/read data by chunks to/from a temporary file
+ * A file opened for reading reads from a shared {@link ServerSnapshot} of the
+ * version instead of a temporary copy.
+ * It records its owner and the time of its last transfer, so the server can
+ * abort it when the owner abandoned it.
  */
 public class ServerTempFile {
     /**
@@ -27,9 +33,14 @@ public class ServerTempFile {
     private String relativePath;
     /**
      * {@link File}
-     * Temporary file
+     * Temporary file, null if opened for reading
      */
     private File tempFile;
+    /**
+     * {@link ServerSnapshot}
+     * Snapshot of the version, null if opened for writing
+     */
+    private ServerSnapshot snapshot;
     /**
      * {@link RandomAccessFile}
      * Random access file
@@ -49,19 +60,32 @@ public class ServerTempFile {
      * True if the file can be read
      */
     private Boolean read;
+    /**
+     * {@link String}
+     * The client that opened the file
+     */
+    private String owner;
+    /**
+     * Time of the last read or write, in System.nanoTime()
+     */
+    private volatile long lastActivity;
+    /**
+     * File descriptor of the file in the table, -1 if not added
+     */
+    private int fd;
 
     /**
-     * Constructor
+     * Constructor for writing
      * 
      * @param serverFile {@link ServerFile} Server file
      * @param tempFile   {@link File} Temporary file that this open file is associated
      * @param verId      {@link UUID} Version ID
-     * @param read       {@link Boolean} True if the file can be read
      */
-    public ServerTempFile(ServerFile serverFile, File tempFile, UUID verId, Boolean read){
+    public ServerTempFile(ServerFile serverFile, File tempFile, UUID verId){
         this.fileTable = serverFile.getFileTable();
         this.relativePath = serverFile.getRelativePath();
         this.tempFile = tempFile;
+        this.snapshot = null;
         try {
             this.randomAccessFile = new RandomAccessFile(tempFile, "rw");
         } catch (FileNotFoundException e) {
@@ -69,57 +93,216 @@ public class ServerTempFile {
         }
         this.size = tempFile.length();
         this.verId = verId;
-        this.read = read;
+        this.read = false;
+        this.owner = null;
+        this.lastActivity = System.nanoTime();
+        this.fd = -1;
     }
 
     /**
-     * Read data from the file
+     * Constructor for reading
      * 
+     * @param serverFile {@link ServerFile} Server file
+     * @param snapshot   {@link ServerSnapshot} Snapshot of the version, already
+     *                   used for this open file
+     */
+    public ServerTempFile(ServerFile serverFile, ServerSnapshot snapshot) {
+        this.fileTable = serverFile.getFileTable();
+        this.relativePath = serverFile.getRelativePath();
+        this.tempFile = null;
+        this.snapshot = snapshot;
+        this.randomAccessFile = null;
+        this.size = snapshot.getSize();
+        this.verId = snapshot.getVerId();
+        this.read = true;
+        this.owner = null;
+        this.lastActivity = System.nanoTime();
+        this.fd = -1;
+    }
+
+    /**
+     * Read data from the file at a given offset
+     * 
+     * This uses positional reads, so ranges can be requested in any order and by
+     * multiple threads at the same time.
+     * 
+     * @param offset Offset in the file to read from
+     * @param length Max number of bytes to read
      * @return {@link byte[]} Data
      */
-    public byte[] read(){
-        long remaining = 0;
-        try {
-            remaining = size - randomAccessFile.getFilePointer();
-        } catch (IOException e) {
-            e.printStackTrace();
+    public byte[] read(long offset, int length) {
+        touch();
+        if (read) {
+            return snapshot.read(offset, length);
         }
-        int readSize = (int) Math.min(remaining, Server.CHUNK_SIZE);
-        byte[] buffer = new byte[readSize];
+        int readSize = (int) Math.max(0, Math.min(length, size - offset));
+        ByteBuffer buffer = ByteBuffer.allocate(readSize);
         try {
-            randomAccessFile.read(buffer);
+            while (buffer.hasRemaining()) {
+                int n = randomAccessFile.getChannel().read(buffer, offset + buffer.position());
+                if (n < 0) {
+                    break;
+                }
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
-        return buffer;
+        return buffer.array();
     }
 
     /**
-     * Write data to the file
+     * Write data to the file at a given offset
      * 
-     * @param data {@link byte[]} Data
+     * This uses positional writes, so chunks can arrive in any order and from
+     * multiple threads at the same time.
+     * 
+     * @param offset Offset in the file to write to
+     * @param data   {@link byte[]} Data
+     * @throws IOException if the data couldn't be written, e.g. the disk is full
      */
-    public void write(byte[] data){
+    public void write(long offset, byte[] data) throws IOException {
+        touch();
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            randomAccessFile.getChannel().write(buffer, offset + buffer.position());
+        }
+    }
+
+    /**
+     * Pin the channel of a file opened for reading for a transfer
+     * 
+     * The snapshot is used until unpinChannel, so closing or aborting the file
+     * meanwhile doesn't close the channel under the transfer.
+     * 
+     * @return {@link FileChannel} Channel of the snapshot, null if the file is
+     *         opened for writing or the snapshot is closed
+     */
+    public FileChannel pinChannel() {
+        if (!read || !snapshot.use()) {
+            return null;
+        }
+        return snapshot.getChannel();
+    }
+
+    /**
+     * Unpin the channel pinned by pinChannel
+     */
+    public void unpinChannel() {
+        snapshot.release();
+    }
+
+    public Boolean isRead() {
+        return read;
+    }
+
+    /**
+     * Get the size of the file
+     * 
+     * @return Size of the file
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Get the version ID of the file
+     * 
+     * @return {@link UUID} Version ID
+     */
+    public UUID getVerId() {
+        return verId;
+    }
+
+    /**
+     * Set the client that opened the file
+     * 
+     * @param owner {@link String} The client that opened the file
+     */
+    public void setOwner(String owner) {
+        this.owner = owner;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public void setFd(int fd) {
+        this.fd = fd;
+    }
+
+    public int getFd() {
+        return fd;
+    }
+
+    /**
+     * Mark the file as used now, so it's not aborted as idle
+     * 
+     * Reads and writes mark it themselves, transfers from the channel must call
+     * this.
+     */
+    public void touch() {
+        lastActivity = System.nanoTime();
+    }
+
+    /**
+     * Check if the file has not been read or written for a while
+     * 
+     * @param idleNanos Idle time in nanoseconds
+     * @return {@link Boolean} True if idle for at least idleNanos
+     */
+    public Boolean isIdle(long idleNanos) {
+        return System.nanoTime() - lastActivity >= idleNanos;
+    }
+
+    /**
+     * Abort the file without committing it
+     * 
+     * A file opened for writing deletes its temporary file.
+     */
+    public void abort() {
+        Logger.log("Abort " + (read ? "read" : "write") + " of " + relativePath + " by " + owner);
+        if (read) {
+            snapshot.release();
+            return;
+        }
         try {
-            randomAccessFile.write(data);
+            randomAccessFile.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
+        tempFile.delete();
     }
 
     /**
      * Close the file
+     * 
+     * A file opened for writing is committed as the new version of the file.
+     * 
+     * @return {@link Boolean} True if closed, False if a file opened for writing
+     *         couldn't be committed
      */
-    public void close(){
+    public Boolean close() {
+        if (read) {
+            snapshot.release();
+            return true;
+        }
+        Boolean synced = false;
+        try {
+            randomAccessFile.getChannel().force(true); // Data must be on disk before the rename commits it
+            synced = true;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
         try {
             randomAccessFile.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
-        if(!read){
-            fileTable.updateFile(relativePath, tempFile, verId);
-            
+        Boolean committed = synced && fileTable.updateFile(relativePath, tempFile, verId);
+        if (!committed) {
+            Logger.log("Failed to commit " + relativePath);
         }
-        tempFile.delete();
+        tempFile.delete(); // No-op if the temporary file has become the file
+        return committed;
     }
 }
@@ -0,0 +1,118 @@
+
+/**
+ * CacheIndexTest.java
+ * 
+ * @author Cundao Yu <cundaoy@andrew.cmu.edu>
+ */
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Tests of replaying the journal of {@link CacheIndex}
+ */
+public class CacheIndexTest {
+    public static void main(String[] args) throws Exception {
+        testReplay();
+        testTornRecord();
+        testCompaction();
+        System.out.println("CacheIndexTest: OK");
+    }
+
+    /**
+     * Puts, accesses and removes are replayed in order, from the least recently
+     * used
+     */
+    private static void testReplay() throws Exception {
+        String cacheDir = newCacheDir();
+        CacheIndex index = newIndex(cacheDir);
+        CacheIndexEntry c2 = new CacheIndexEntry("c", UUID.randomUUID(), 30, true, true);
+        index.put(new CacheIndexEntry("a", UUID.randomUUID(), 10, true, false));
+        index.put(new CacheIndexEntry("b", UUID.randomUUID(), 20, true, true));
+        index.put(new CacheIndexEntry("c", UUID.randomUUID(), 3, true, true));
+        index.access("a");
+        index.remove("b");
+        index.put(c2); // New version of c
+        index.flush();
+
+        List<CacheIndexEntry> entries = new CacheIndex(cacheDir).load();
+        Check.equal("[a, c]", pathsOf(entries).toString(), "replayed entries");
+        CacheIndexEntry c = entries.get(1);
+        Check.equal(c2.getVerId(), c.getVerId(), "version of c");
+        Check.equal(30L, c.getSize(), "size of c");
+        Check.equal(false, entries.get(0).getCanWrite(), "permission of a");
+    }
+
+    /**
+     * A record torn by a crash ends the replay, the records before it are kept
+     */
+    private static void testTornRecord() throws Exception {
+        String cacheDir = newCacheDir();
+        CacheIndex index = newIndex(cacheDir);
+        index.put(new CacheIndexEntry("a", UUID.randomUUID(), 10, true, true));
+        index.flush();
+        try (FileOutputStream out = new FileOutputStream(cacheDir + CacheIndex.JOURNAL_NAME, true)) {
+            out.write(new byte[] { 1, 0, 1, 'b', 0, 0 }); // Put of b cut in its version ID
+        }
+
+        Check.equal("[a]", pathsOf(new CacheIndex(cacheDir).load()).toString(), "entries before the torn record");
+    }
+
+    /**
+     * The journal is compacted after many records without changing the entries
+     */
+    private static void testCompaction() throws Exception {
+        String cacheDir = newCacheDir();
+        CacheIndex index = newIndex(cacheDir);
+        index.put(new CacheIndexEntry("a", UUID.randomUUID(), 10, true, true));
+        index.put(new CacheIndexEntry("b", UUID.randomUUID(), 10, true, true));
+        for (int i = 0; i < 2000; i++) {
+            index.access(i % 2 == 0 ? "b" : "a"); // 4 bytes each
+        }
+        index.put(new CacheIndexEntry("c", UUID.randomUUID(), 10, true, true));
+        index.flush();
+
+        long journalSize = Files.size(Paths.get(cacheDir + CacheIndex.JOURNAL_NAME));
+        Check.isTrue(journalSize < 2000 * 4, "journal is compacted: " + journalSize + " bytes");
+        Check.equal("[b, a, c]", pathsOf(new CacheIndex(cacheDir).load()).toString(), "entries after compaction");
+    }
+
+    /**
+     * Create an index journaling to a cache directory, as the cache does at
+     * startup
+     * 
+     * @param cacheDir {@link String} The cache directory
+     * @return {@link CacheIndex} The index
+     */
+    private static CacheIndex newIndex(String cacheDir) {
+        CacheIndex index = new CacheIndex(cacheDir);
+        index.rewrite(index.load());
+        return index;
+    }
+
+    /**
+     * Create an empty cache directory
+     * 
+     * @return {@link String} The directory, ending with a slash
+     */
+    private static String newCacheDir() throws Exception {
+        return Files.createTempDirectory("cache").toString() + "/";
+    }
+
+    /**
+     * Get the paths of entries
+     * 
+     * @param entries {@link List}<{@link CacheIndexEntry}> The entries
+     * @return {@link List}<{@link String}> Their paths, in order
+     */
+    private static List<String> pathsOf(List<CacheIndexEntry> entries) {
+        List<String> paths = new ArrayList<String>();
+        for (CacheIndexEntry entry : entries) {
+            paths.add(entry.getRelativePath());
+        }
+        return paths;
+    }
+}
@@ -0,0 +1,39 @@
+
+/**
+ * Check.java
+ * 
+ * @author Cundao Yu <cundaoy@andrew.cmu.edu>
+ */
+import java.util.Objects;
+
+/**
+ * Checks of the unit tests
+ * 
+ * A failed check throws an AssertionError, so the test exits with an error.
+ */
+public class Check {
+    /**
+     * Check a condition holds
+     * 
+     * @param condition {@link Boolean} The condition
+     * @param message   {@link String} What is checked
+     */
+    public static void isTrue(Boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    /**
+     * Check a value is the expected one
+     * 
+     * @param expected {@link Object} The expected value
+     * @param actual   {@link Object} The actual value
+     * @param message  {@link String} What is checked
+     */
+    public static void equal(Object expected, Object actual, String message) {
+        if (!Objects.equals(expected, actual)) {
+            throw new AssertionError(message + ": expected " + expected + " but was " + actual);
+        }
+    }
+}
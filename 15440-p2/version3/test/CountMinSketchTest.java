@@ -0,0 +1,64 @@
+
+/**
+ * CountMinSketchTest.java
+ * 
+ * @author Cundao Yu <cundaoy@andrew.cmu.edu>
+ */
+
+/**
+ * Tests of {@link CountMinSketch}
+ */
+public class CountMinSketchTest {
+    public static void main(String[] args) {
+        testCount();
+        testSaturation();
+        testAging();
+        System.out.println("CountMinSketchTest: OK");
+    }
+
+    /**
+     * Counts of a few paths are exact
+     */
+    private static void testCount() {
+        CountMinSketch sketch = new CountMinSketch(1024);
+        Check.equal(0, sketch.frequency("a"), "unseen path");
+        for (int i = 0; i < 3; i++) {
+            sketch.increment("a");
+        }
+        sketch.increment("b");
+        Check.equal(3, sketch.frequency("a"), "frequency of a");
+        Check.equal(1, sketch.frequency("b"), "frequency of b");
+    }
+
+    /**
+     * Counters stop at 15
+     */
+    private static void testSaturation() {
+        CountMinSketch sketch = new CountMinSketch(1024);
+        for (int i = 0; i < 20; i++) {
+            sketch.increment("a");
+        }
+        Check.equal(15, sketch.frequency("a"), "frequency is capped");
+    }
+
+    /**
+     * Once enough increments are counted, all counters are halved
+     */
+    private static void testAging() {
+        CountMinSketch sketch = new CountMinSketch(16); // 32 counters a row, halved every 320 increments
+        for (int i = 0; i < 14; i++) {
+            sketch.increment("a");
+        }
+        int before = sketch.frequency("a");
+        for (int i = 0; i < 1000; i++) {
+            sketch.increment("k" + i);
+            int after = sketch.frequency("a");
+            if (after < before) {
+                Check.isTrue(after <= (before + 1) / 2, "frequency is halved: " + before + " to " + after);
+                return;
+            }
+            before = after;
+        }
+        throw new AssertionError("frequencies are never halved");
+    }
+}
@@ -0,0 +1,70 @@
+
+/**
+ * DirtyRangesTest.java
+ * 
+ * @author Cundao Yu <cundaoy@andrew.cmu.edu>
+ */
+import java.util.List;
+
+/**
+ * Tests of {@link DirtyRanges}
+ */
+public class DirtyRangesTest {
+    public static void main(String[] args) {
+        testMerge();
+        testClip();
+        System.out.println("DirtyRangesTest: OK");
+    }
+
+    /**
+     * Ranges overlapping or touching are merged, the others are kept apart
+     */
+    private static void testMerge() {
+        DirtyRanges ranges = new DirtyRanges();
+        ranges.add(100, 10);
+        ranges.add(0, 10);
+        ranges.add(50, 0); // Empty, ignored
+        Check.equal("[0+10, 100+10]", format(ranges.getRanges(1000)), "disjoint ranges");
+
+        ranges.add(10, 5); // Touches the first
+        ranges.add(105, 3); // Inside the second
+        Check.equal("[0+15, 100+10]", format(ranges.getRanges(1000)), "touching and contained ranges");
+
+        ranges.add(12, 90); // Overlaps both
+        Check.equal("[0+110]", format(ranges.getRanges(1000)), "range merged with all it overlaps");
+
+        for (long offset = 200; offset < 300; offset += 10) {
+            ranges.add(offset, 10); // Sequential writes
+        }
+        Check.equal("[0+110, 200+100]", format(ranges.getRanges(1000)), "sequential writes are one range");
+    }
+
+    /**
+     * Ranges are clipped to the size of the file
+     */
+    private static void testClip() {
+        DirtyRanges ranges = new DirtyRanges();
+        ranges.add(0, 10);
+        ranges.add(20, 10);
+        ranges.add(40, 10);
+        Check.equal("[0+10, 20+5]", format(ranges.getRanges(25)), "ranges clipped to the size");
+        Check.equal("[]", format(ranges.getRanges(0)), "no range in an empty file");
+    }
+
+    /**
+     * Format ranges as offset+length
+     * 
+     * @param ranges {@link List}<{@link long[]}> The ranges
+     * @return {@link String} The ranges formatted
+     */
+    private static String format(List<long[]> ranges) {
+        StringBuilder builder = new StringBuilder("[");
+        for (long[] range : ranges) {
+            if (builder.length() > 1) {
+                builder.append(", ");
+            }
+            builder.append(range[0]).append('+').append(range[1]);
+        }
+        return builder.append(']').toString();
+    }
+}
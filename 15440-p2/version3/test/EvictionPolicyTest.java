@@ -0,0 +1,166 @@
+
+/**
+ * EvictionPolicyTest.java
+ * 
+ * @author Cundao Yu <cundaoy@andrew.cmu.edu>
+ */
+import java.util.UUID;
+
+/**
+ * Tests of the {@link EvictionPolicy} implementations
+ */
+public class EvictionPolicyTest {
+    public static void main(String[] args) {
+        testLru();
+        testLfu();
+        testArc();
+        testTinyLfu();
+        testGdsf();
+        System.out.println("EvictionPolicyTest: OK");
+    }
+
+    /**
+     * LRU evicts the least recently used file that can be evicted
+     */
+    private static void testLru() {
+        EvictionPolicy policy = new LruPolicy();
+        CacheFile a = newFile("a", 10);
+        CacheFile b = newFile("b", 10);
+        CacheFile c = newFile("c", 10);
+        policy.onInsert(a);
+        policy.onInsert(b);
+        policy.onInsert(c);
+        policy.onAccess(a);
+        Check.equal(b, policy.selectVictim(file -> true), "LRU victim is the least recently used");
+        Check.equal(c, policy.selectVictim(file -> file != b), "LRU skips files in use");
+
+        policy.onEvict(b);
+        Check.equal(c, policy.selectVictim(file -> true), "LRU victim after eviction");
+        policy.onRemove(c);
+        Check.equal(a, policy.selectVictim(file -> true), "LRU victim after removal");
+        policy.onRemove(a);
+        Check.equal(null, policy.selectVictim(file -> true), "empty LRU has no victim");
+    }
+
+    /**
+     * LFU evicts the least frequently used file, the least recently used of them
+     * on a tie
+     */
+    private static void testLfu() {
+        EvictionPolicy policy = new LfuPolicy();
+        CacheFile a = newFile("a", 10);
+        CacheFile b = newFile("b", 10);
+        CacheFile c = newFile("c", 10);
+        policy.onInsert(a);
+        policy.onInsert(b);
+        policy.onInsert(c);
+        policy.onAccess(a);
+        policy.onAccess(a);
+        policy.onAccess(c);
+        Check.equal(b, policy.selectVictim(file -> true), "LFU victim is the least frequently used");
+
+        policy.onEvict(b);
+        Check.equal(c, policy.selectVictim(file -> true), "LFU victim after eviction");
+        CacheFile d = newFile("d", 10);
+        CacheFile e = newFile("e", 10);
+        policy.onInsert(d);
+        policy.onInsert(e);
+        Check.equal(d, policy.selectVictim(file -> true), "LFU tie goes to the least recently used");
+        Check.equal(e, policy.selectVictim(file -> file != d), "LFU skips files in use");
+        Check.isTrue(policy.getStatus().contains("a(3)"), "LFU status has frequencies");
+    }
+
+    /**
+     * ARC evicts from T1 first, and a ghost hit moves the file to T2 and grows
+     * the target of T1
+     */
+    private static void testArc() {
+        EvictionPolicy policy = new ArcPolicy(100);
+        CacheFile a = newFile("a", 10);
+        CacheFile b = newFile("b", 10);
+        policy.onInsert(a);
+        policy.onInsert(b);
+        policy.onAccess(a); // Seen twice, to T2
+        Check.equal(b, policy.selectVictim(file -> true), "ARC victim is in T1");
+        Check.equal(a, policy.selectVictim(file -> file != b), "ARC falls back to T2");
+
+        policy.onEvict(b); // Remembered in B1
+        CacheFile b2 = newFile("b", 10);
+        policy.onInsert(b2);
+        String status = policy.getStatus();
+        Check.isTrue(status.startsWith("ARC status: target 10 "), "ghost hit in B1 grows the target: " + status);
+        Check.isTrue(status.endsWith("T1: T2: a b "), "ghost hit goes to T2: " + status);
+        Check.equal(a, policy.selectVictim(file -> true), "ARC victim is the least recently used of T2");
+
+        policy.onRemove(a);
+        policy.onRemove(b2);
+        Check.equal(null, policy.selectVictim(file -> true), "empty ARC has no victim");
+    }
+
+    /**
+     * W-TinyLFU fills the main area from the window, then evicts the window
+     * candidate unless it's used more often than the victim of the main area
+     */
+    private static void testTinyLfu() {
+        CountMinSketch sketch = new CountMinSketch(1024);
+        EvictionPolicy policy = new TinyLfuPolicy(1000, sketch); // Window of 10, main area of 990
+        CacheFile[] files = new CacheFile[11];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = newFile("f" + i, 100);
+            policy.onInsert(files[i]);
+        }
+        String status = policy.getStatus();
+        Check.isTrue(status.contains("window: f9 f10 probation: f0 f1 f2 f3 f4 f5 f6 f7 f8 protected: "),
+                "window overflow goes on probation until the main area is full: " + status);
+
+        policy.onAccess(files[0]);
+        Check.isTrue(policy.getStatus().endsWith("protected: f0 "), "hit on probation is protected");
+        Check.equal(files[9], policy.selectVictim(file -> true), "window candidate used once is evicted");
+
+        for (int i = 0; i < 3; i++) {
+            sketch.increment("f9");
+        }
+        Check.equal(files[1], policy.selectVictim(file -> true), "frequent window candidate evicts the victim");
+        Check.isTrue(policy.getStatus().contains("probation: f1 f2 f3 f4 f5 f6 f7 f8 f9 "),
+                "admitted candidate goes on probation");
+
+        policy.onEvict(files[1]);
+        Check.equal(files[10], policy.selectVictim(file -> true), "next window candidate");
+        Check.equal(null, policy.selectVictim(file -> false), "no victim if nothing can be evicted");
+    }
+
+    /**
+     * GDSF evicts the file with the lowest frequency per byte, and ages the
+     * priorities of the remaining files by inflation
+     */
+    private static void testGdsf() {
+        EvictionPolicy policy = new GdsfPolicy();
+        CacheFile large = newFile("large", 1000);
+        CacheFile small = newFile("small", 10);
+        policy.onInsert(large);
+        policy.onInsert(small);
+        Check.equal(large, policy.selectVictim(file -> true), "GDSF victim is the large file");
+
+        policy.onEvict(large); // Inflation becomes 1 / 1000
+        CacheFile p = newFile("p", 100);
+        CacheFile q = newFile("q", 100);
+        policy.onInsert(p);
+        policy.onInsert(q);
+        policy.onAccess(p);
+        Check.equal(q, policy.selectVictim(file -> true), "GDSF victim is the less frequently used");
+        Check.equal(p, policy.selectVictim(file -> file != q), "GDSF skips files in use");
+        Check.isTrue(policy.getStatus().startsWith("GDSF status: inflation 0.001 "), "GDSF inflation");
+    }
+
+    /**
+     * Create a cache file of a size, its version has no content
+     * 
+     * @param relativePath {@link String} Relative path of the file
+     * @param size         Size of the file
+     * @return {@link CacheFile} The file
+     */
+    private static CacheFile newFile(String relativePath, long size) {
+        return new CacheFile(relativePath, new CacheFileVersion(relativePath, UUID.randomUUID(), true, false, -1,
+                size, null));
+    }
+}
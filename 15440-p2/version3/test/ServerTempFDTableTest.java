@@ -0,0 +1,168 @@
+
+/**
+ * ServerTempFDTableTest.java
+ * 
+ * @author Cundao Yu <cundaoy@andrew.cmu.edu>
+ */
+import java.io.File;
+import java.nio.file.Files;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests of the slot bitmap and generations of {@link ServerTempFDTable}
+ */
+public class ServerTempFDTableTest {
+    /**
+     * Number of slots of the table
+     */
+    private static final int MAX_SIZE = 10240;
+    /**
+     * Mask of the slot in a descriptor
+     */
+    private static final int SLOT_MASK = (1 << 14) - 1;
+
+    /**
+     * {@link ServerFile}
+     * File the open files are read from
+     */
+    private static ServerFile serverFile;
+    /**
+     * {@link ServerSnapshot}
+     * Snapshot shared by the open files
+     */
+    private static ServerSnapshot snapshot;
+
+    public static void main(String[] args) throws Exception {
+        String rootdir = Files.createTempDirectory("root").toString() + "/";
+        File file = new File(rootdir + "f");
+        Files.write(file.toPath(), new byte[] { 1, 2, 3 });
+        Server server = new Server(rootdir);
+        UUID verId = UUID.randomUUID();
+        serverFile = new ServerFile(server.getFileTable(), "f", verId, true, true);
+        snapshot = new ServerSnapshot(file, verId);
+        snapshot.use(); // Held by the test
+
+        testLowestFreeSlot();
+        testGenerations();
+        testFull();
+        testReapIdle();
+        testConcurrent();
+        UnicastRemoteObject.unexportObject(server, true);
+        System.out.println("ServerTempFDTableTest: OK");
+    }
+
+    /**
+     * The lowest free slot is taken first
+     */
+    private static void testLowestFreeSlot() {
+        ServerTempFDTable table = new ServerTempFDTable();
+        int[] fds = new int[3];
+        for (int i = 0; i < fds.length; i++) {
+            fds[i] = table.addOpenFile(newOpenFile());
+            Check.equal(i, fds[i] & SLOT_MASK, "slot of open file " + i);
+        }
+        Check.isTrue(table.removeOpenFile(fds[1], table.getOpenFile(fds[1])), "remove the middle open file");
+        Check.equal(1, table.addOpenFile(newOpenFile()) & SLOT_MASK, "freed slot is taken again");
+        Check.equal(3, table.addOpenFile(newOpenFile()) & SLOT_MASK, "next slot");
+    }
+
+    /**
+     * A descriptor closed or reaped never reaches the open file taking its slot
+     * after it
+     */
+    private static void testGenerations() {
+        ServerTempFDTable table = new ServerTempFDTable();
+        ServerTempFile first = newOpenFile();
+        int oldFd = table.addOpenFile(first);
+        Check.equal(first, table.getOpenFile(oldFd), "open file of the descriptor");
+        Check.isTrue(table.removeOpenFile(oldFd, first), "remove the open file");
+        Check.isTrue(!table.removeOpenFile(oldFd, first), "an open file is removed only once");
+
+        ServerTempFile second = newOpenFile();
+        int newFd = table.addOpenFile(second);
+        Check.equal(oldFd & SLOT_MASK, newFd & SLOT_MASK, "same slot");
+        Check.isTrue(oldFd != newFd, "new generation");
+        Check.equal(null, table.getOpenFile(oldFd), "old descriptor is not open");
+        Check.isTrue(!table.verifyFd(oldFd), "old descriptor is invalid");
+        Check.isTrue(!table.removeOpenFile(oldFd, first), "old descriptor doesn't remove the new open file");
+        Check.equal(second, table.getOpenFile(newFd), "new descriptor still open");
+        Check.isTrue(!table.verifyFd(-1) && !table.verifyFd(MAX_SIZE), "descriptors out of the table");
+    }
+
+    /**
+     * A full table gives no descriptor until one is freed
+     */
+    private static void testFull() {
+        ServerTempFDTable table = new ServerTempFDTable();
+        int lastFd = -1;
+        for (int i = 0; i < MAX_SIZE; i++) {
+            lastFd = table.addOpenFile(newOpenFile());
+            Check.isTrue(lastFd >= 0, "descriptor " + i);
+        }
+        Check.equal(-1, table.addOpenFile(newOpenFile()), "table is full");
+        table.removeOpenFile(lastFd, table.getOpenFile(lastFd));
+        Check.equal(MAX_SIZE - 1, table.addOpenFile(newOpenFile()) & SLOT_MASK, "freed last slot");
+    }
+
+    /**
+     * Only open files idle for long enough are reaped
+     */
+    private static void testReapIdle() throws Exception {
+        ServerTempFDTable table = new ServerTempFDTable();
+        List<Integer> fds = new ArrayList<Integer>();
+        for (int i = 0; i < 4; i++) {
+            fds.add(table.addOpenFile(newOpenFile()));
+        }
+        Thread.sleep(50);
+        ServerTempFile active = table.getOpenFile(fds.get(2));
+        active.touch();
+
+        Check.equal(3, table.reapIdle(30_000_000L), "idle open files reaped");
+        Check.equal(0, table.reapIdle(30_000_000L), "reaped open files are gone");
+        for (int i = 0; i < fds.size(); i++) {
+            Check.equal(i == 2, table.verifyFd(fds.get(i)), "descriptor " + i + " after reaping");
+        }
+    }
+
+    /**
+     * Threads adding and removing at the same time never share a descriptor
+     */
+    private static void testConcurrent() throws Exception {
+        ServerTempFDTable table = new ServerTempFDTable();
+        AtomicInteger errors = new AtomicInteger(0);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 2000; i++) {
+                    ServerTempFile openFile = newOpenFile();
+                    int fd = table.addOpenFile(openFile);
+                    if (fd < 0 || table.getOpenFile(fd) != openFile || !table.removeOpenFile(fd, openFile)) {
+                        errors.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Check.equal(0, errors.get(), "descriptors shared between threads");
+        Check.equal(0, table.addOpenFile(newOpenFile()) & SLOT_MASK, "all slots are freed");
+    }
+
+    /**
+     * Create an open file reading the shared snapshot
+     * 
+     * @return {@link ServerTempFile} The open file
+     */
+    private static ServerTempFile newOpenFile() {
+        snapshot.use();
+        return new ServerTempFile(serverFile, snapshot);
+    }
+}
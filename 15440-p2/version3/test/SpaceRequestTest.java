@@ -0,0 +1,87 @@
+
+/**
+ * SpaceRequestTest.java
+ * 
+ * @author Cundao Yu <cundaoy@andrew.cmu.edu>
+ */
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Tests of the FIFO queue of {@link SpaceRequest} in the cache
+ */
+public class SpaceRequestTest {
+    public static void main(String[] args) throws Exception {
+        System.setProperty("proxy.reserveTimeout", "500"); // Before Proxy is loaded
+        testFifoOrder();
+        testTimeout();
+        testTooLarge();
+        System.out.println("SpaceRequestTest: OK");
+    }
+
+    /**
+     * A request that fits waits behind an earlier one that doesn't
+     */
+    private static void testFifoOrder() throws Exception {
+        Cache cache = newCache(100);
+        Check.isTrue(cache.requestSize(60), "first request is reserved at once");
+
+        List<String> granted = new CopyOnWriteArrayList<String>();
+        Thread large = new Thread(() -> {
+            if (cache.requestSize(50)) {
+                granted.add("large");
+            }
+        });
+        Thread small = new Thread(() -> {
+            if (cache.requestSize(10)) {
+                granted.add("small");
+            }
+        });
+        large.start();
+        Thread.sleep(100); // Queue the large request first
+        small.start();
+        Thread.sleep(100);
+        Check.isTrue(large.isAlive() && small.isAlive(), "small request waits behind the large one");
+
+        cache.releaseSize(60);
+        large.join();
+        small.join();
+        Check.isTrue(granted.containsAll(Arrays.asList("large", "small")), "both requests are granted");
+    }
+
+    /**
+     * A request not satisfied in time gives up and lets the next one try
+     */
+    private static void testTimeout() throws Exception {
+        Cache cache = newCache(100);
+        Check.isTrue(cache.requestSize(80), "first request is reserved at once");
+        long start = System.nanoTime();
+        Check.isTrue(!cache.requestSize(50), "request times out without space");
+        Check.isTrue(System.nanoTime() - start >= 400_000_000L, "request waits about RESERVE_TIMEOUT");
+        Check.isTrue(cache.requestSize(20), "next request still gets the free space");
+    }
+
+    /**
+     * A request larger than the cache fails at once
+     */
+    private static void testTooLarge() throws Exception {
+        Cache cache = newCache(100);
+        long start = System.nanoTime();
+        Check.isTrue(!cache.requestSize(101), "request larger than the cache fails");
+        Check.isTrue(System.nanoTime() - start < 400_000_000L, "request larger than the cache doesn't wait");
+        Check.isTrue(cache.requestSize(0), "empty request is reserved");
+    }
+
+    /**
+     * Create an empty cache in a temporary directory
+     * 
+     * @param size Size of the cache
+     * @return {@link Cache} The cache
+     */
+    private static Cache newCache(long size) throws Exception {
+        String cacheDir = Files.createTempDirectory("cache").toString() + "/";
+        return new Cache(cacheDir, size);
+    }
+}
@@ -7,14 +7,23 @@
 /**
  * Logger
  * 
- * Just a simple logger
+ * Just a simple logger, off unless logger.debug is set
  */
 public class Logger {
-    private static final Boolean DEBUG = true;
+    private static final Boolean DEBUG = Boolean.getBoolean("logger.debug");
 
     public static void log(String message) {
         if (DEBUG) {
             System.err.println(message);
         }
     }
+
+    /**
+     * Check if messages are printed, to skip building costly ones
+     * 
+     * @return {@link Boolean} True if logging is on
+     */
+    public static Boolean isEnabled() {
+        return DEBUG;
+    }
 }
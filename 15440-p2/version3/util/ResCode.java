@@ -18,6 +18,9 @@ public class ResCode {
     public static final int ENOENT = -2;
     public static final int EPERM = -1;
     public static final int EMFILE = -24;
+    public static final int ENFILE = -23;
+    public static final int EIO = -5;
+    public static final int ENOSPC = -28;
 
     /* Result code */
     public static final int SUCCESS = 0;